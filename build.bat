@@ -1,3 +1,6 @@
 if not exist "bin" mkdir "bin"
 
-javac -cp src/de/codecoverage/config/ -d bin src/de/codecoverage/config/ConfigManager.java src/de/codecoverage/config/TestDriver.java
+javac -cp src/de/codecoverage/config/ -d bin src/de/codecoverage/config/ConfigManager.java src/de/codecoverage/config/ConfigProcessor.java || exit /b 1
+rem pre-built defaults, generated by the annotation processor
+javac -cp bin -processorpath bin -processor de.codecoverage.config.ConfigProcessor -d bin src/de/codecoverage/config/TestDriverPrebuilt.java || exit /b 1
+javac -cp bin -d bin src/de/codecoverage/config/TestDriver.java src/de/codecoverage/config/SoakDriver.java src/de/codecoverage/config/StressDriver.java src/de/codecoverage/config/RedeployDriver.java
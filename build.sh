@@ -1,7 +1,11 @@
 #!/bin/bash
+set -e
 
 if [ ! -d "bin" ]; then
   mkdir -p "bin"
 fi
 
-javac -cp src/de/codecoverage/config/ -d bin src/de/codecoverage/config/ConfigManager.java src/de/codecoverage/config/TestDriver.java
+javac -cp src/de/codecoverage/config/ -d bin src/de/codecoverage/config/ConfigManager.java src/de/codecoverage/config/ConfigProcessor.java
+# pre-built defaults, generated by the annotation processor
+javac -cp bin -processorpath bin -processor de.codecoverage.config.ConfigProcessor -d bin src/de/codecoverage/config/TestDriverPrebuilt.java
+javac -cp bin -d bin src/de/codecoverage/config/TestDriver.java src/de/codecoverage/config/SoakDriver.java src/de/codecoverage/config/StressDriver.java src/de/codecoverage/config/RedeployDriver.java
@@ -0,0 +1,23 @@
+@echo off
+rem Redeploy test: ConfigManager.create() ... close() in a new deployment class loader per cycle, fails if a
+rem deployment class loader isn't collected or the threads, metaspace or loaded classes don't return to the baseline.
+rem redeploy.bat [cycles, default 100]
+setlocal
+
+call build.bat
+if %ERRORLEVEL% neq 0 (
+    echo Bob der Baumeister failed to build
+    exit /b 1
+)
+
+set CYCLES=%1
+if "%CYCLES%"=="" set CYCLES=100
+
+java -cp bin de.codecoverage.config.RedeployDriver %CYCLES% > redeploy.log 2>&1
+if %ERRORLEVEL% neq 0 (
+    type redeploy.log
+    echo Redeploy test failed
+    exit /b 1
+)
+type redeploy.log
+exit /b 0
@@ -0,0 +1,18 @@
+#!/bin/bash
+# Redeploy test: ConfigManager.create() ... close() in a new deployment class loader per cycle, fails if a
+# deployment class loader isn't collected or the threads, metaspace or loaded classes don't return to the baseline.
+# ./redeploy.sh [cycles, default 100]
+
+if ! ./build.sh; then
+    echo "Bob der Baumeister failed to build"
+    exit 1
+fi
+
+java -cp bin de.codecoverage.config.RedeployDriver ${1:-100} > redeploy.log 2>&1
+rc=$?
+cat redeploy.log
+
+if [ $rc -ne 0 ] || grep -q "Exception" redeploy.log; then
+    echo "Redeploy test failed"
+    exit 1
+fi
@@ -0,0 +1,26 @@
+@echo off
+rem Soak test: one JVM, many reloads, fails on an upward trend of metaspace, classes, heap or reload latency.
+rem soak.bat [reloads, default 1000000] [reloads per sample, default 10000] [every n-th reload by the watcher, default 100]
+setlocal
+
+call build.bat
+if %ERRORLEVEL% neq 0 (
+    echo Bob der Baumeister failed to build
+    exit /b 1
+)
+
+set RELOADS=%1
+if "%RELOADS%"=="" set RELOADS=1000000
+set WINDOW=%2
+if "%WINDOW%"=="" set WINDOW=10000
+set BYWATCHER=%3
+if "%BYWATCHER%"=="" set BYWATCHER=100
+
+java -Xmx256m -cp bin de.codecoverage.config.SoakDriver %RELOADS% %WINDOW% %BYWATCHER% > soak.log 2>&1
+if %ERRORLEVEL% neq 0 (
+    type soak.log
+    echo Soak test failed, see soak.log
+    exit /b 1
+)
+type soak.log
+exit /b 0
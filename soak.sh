@@ -0,0 +1,19 @@
+#!/bin/bash
+# Soak test: one JVM, many reloads, fails on an upward trend of metaspace, classes, heap or reload latency.
+# ./soak.sh [reloads, default 1000000] [reloads per sample, default 10000] [every n-th reload by the watcher, default 100]
+
+if ! ./build.sh; then
+    echo "Bob der Baumeister failed to build"
+    exit 1
+fi
+
+SECONDS=0
+java -Xmx256m -cp bin de.codecoverage.config.SoakDriver ${1:-1000000} ${2:-10000} ${3:-100} 2>&1 | tee soak.log
+rc=${PIPESTATUS[0]}
+
+if [ $rc -ne 0 ] || grep -q "Exception" soak.log; then
+    echo "Soak test failed, see soak.log"
+    exit 1
+fi
+duration=$SECONDS
+echo "Okay ... took $((duration / 60)) minutes and $((duration % 60)) seconds."
@@ -10,32 +10,80 @@ import java.io.ByteArrayOutputStream;
 import java.io.DataOutputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.PrintStream;
+import java.io.Reader;
+import java.io.UncheckedIOException;
 import java.lang.annotation.Annotation;
 import java.lang.annotation.Documented;
 import java.lang.annotation.Retention;
 import java.lang.annotation.Target;
+import java.lang.management.ManagementFactory;
+import java.lang.ref.WeakReference;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
 import java.lang.reflect.Method;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
 import java.nio.file.ClosedWatchServiceException;
 import java.nio.file.FileSystems;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.nio.file.WatchEvent;
 import java.nio.file.WatchKey;
 import java.nio.file.WatchService;
+import java.security.GeneralSecurityException;
+import java.security.Key;
+import java.security.KeyStore;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.time.Instant;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Properties;
+import java.util.ServiceConfigurationError;
+import java.util.ServiceLoader;
+import java.util.Set;
+import java.util.TreeMap;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.function.Function;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.stream.Collectors;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
  
 /**
  * The Main-Class with its static get() Method
@@ -50,6 +98,7 @@ public final class ConfigManager {
     public @interface Configurable {
          // If encapsulated with "@" then treat it as a SystemProperty. E.g. ="@cwc.dev.csa.config.ccconfig.path@"
          // and the value of cwc.dev.csa.config.ccconfig.path will be used as the path to the configuration file.
+         // For get(Class, tenantId) the path is a template, "{tenant}" is replaced by the tenant id.
          String filePath() default "";
     }
    
@@ -59,8 +108,41 @@ public final class ConfigManager {
     public @interface ConfigurationValue {
          String key();
          String defaultValue();
+         // Constraints, checked before a (re)loaded configuration is published.
+         // min/max: the range of a number, the length of a String
+         double min() default Double.NEGATIVE_INFINITY;
+         double max() default Double.POSITIVE_INFINITY;
+         String regex() default "";  // the whole value must match
+         boolean nonEmpty() default false;
+    }
+
+    // Percentage rollout: boolean method(long id) or boolean method(String id), true for "percent" (0..100)
+    // of the ids. The value of the key is the percent, an id gets always the same answer, see rolloutBucket().
+    @Documented
+    @Target(METHOD)
+    @Retention(RUNTIME)
+    public @interface RolloutFlag {
+         String key();
+         int defaultPercent() default 0;
+    }
+
+    // The method returns another config interface (without @Configurable), backed by the same file.
+    // The keys of the nested interface are prefixed with "prefix", e.g. prefix="db." and key="poolSize" => "db.poolSize"
+    @Documented
+    @Target(METHOD)
+    @Retention(RUNTIME)
+    public @interface ConfigurationGroup {
+         String prefix() default "";
     }
  
+    /**
+     * Registry of the classes with the default values generated by the ConfigProcessor
+     * at compile time, found with the ServiceLoader.
+     */
+    public interface Prebuilt {
+         Map<Class<?>, Object> defaults();
+    }
+
     private static final class Pair<T1, T2>
     {
     	public static <T1,T2> Pair<T1, T2> create(T1 p1, T2 p2) {
@@ -109,10 +191,373 @@ public final class ConfigManager {
     		return true;
     	}
     }
-    private static final Thread WATCHER_THREAD = createWatchThread();
-    private static final ConcurrentHashMap<Class<?>, Pair<Object, Pair<String, Boolean>>> CACHE = new ConcurrentHashMap<>(16);
-    private static final ConcurrentHashMap<Path, ConcurrentHashMap<Path, Boolean>> DIRS2WATCH = new ConcurrentHashMap<>(8);
+    /**
+     * Notified after a new instance of a config interface has been published.
+     * Called on the listener executor, in order per interface.
+     */
+    @FunctionalInterface
+    public interface ConfigListener<T> {
+         void onChange(T oldInstance, T newInstance, Set<String> changedKeys);
+    }
+
+    /**
+     * Decodes values of the form NAME(...), e.g. ENC(...), see registerDecoder(). Called once per (re)load,
+     * the plaintext is compiled into the generated class. Change detection, logs and dumps don't contain it.
+     */
+    @FunctionalInterface
+    public interface ValueDecoder {
+         // not registered by default: registerDecoder("BASE64", ValueDecoder.BASE64)
+         ValueDecoder BASE64 = v -> new String(Base64.getDecoder().decode(v.trim()), StandardCharsets.UTF_8);
+
+         String decode(String encoded); // the text between the parentheses
+    }
+
+    /**
+     * AES/GCM decoder with a secret key from a local (PKCS12) keystore. The encoded value is
+     * base64(iv + ciphertext), see encrypt().
+     */
+    public static final class KeyStoreDecoder implements ValueDecoder {
+         private static final String TRANSFORMATION = "AES/GCM/NoPadding";
+         private static final int IV_LENGTH = 12;
+         private static final int TAG_LENGTH = 128;
+         private final SecretKey key;
+
+         public KeyStoreDecoder(SecretKey key) {
+             this.key = key;
+         }
+
+         public KeyStoreDecoder(Path keyStore, char[] password, String alias) {
+             try (InputStream in = Files.newInputStream(keyStore)) {
+                 KeyStore ks = KeyStore.getInstance("PKCS12");
+                 ks.load(in, password);
+                 Key k = ks.getKey(alias, password);
+                 if (!(k instanceof SecretKey))
+                     throw new IllegalArgumentException("No secret key '" + alias + "' in " + keyStore);
+                 this.key = (SecretKey) k;
+             } catch (IOException e) {
+                 throw new UncheckedIOException("Loading " + keyStore + " failed", e);
+             } catch (GeneralSecurityException e) {
+                 throw new IllegalArgumentException("Loading " + keyStore + " failed", e);
+             }
+         }
+
+         @Override
+         public String decode(String encoded) {
+             try {
+                 byte[] data = Base64.getDecoder().decode(encoded.trim());
+                 if (data.length <= IV_LENGTH)
+                     throw new IllegalArgumentException("encrypted value too short");
+                 Cipher cipher = Cipher.getInstance(TRANSFORMATION);
+                 cipher.init(Cipher.DECRYPT_MODE, key, new GCMParameterSpec(TAG_LENGTH, data, 0, IV_LENGTH));
+                 return new String(cipher.doFinal(data, IV_LENGTH, data.length - IV_LENGTH), StandardCharsets.UTF_8);
+             } catch (GeneralSecurityException e) {
+                 throw new IllegalArgumentException("decryption failed", e);
+             }
+         }
+
+         /**
+         * @param plaintext the value
+         * @return the text to put between the parentheses, e.g. ENC(text)
+         */
+         public String encrypt(String plaintext) {
+             try {
+                 byte[] iv = new byte[IV_LENGTH];
+                 new SecureRandom().nextBytes(iv);
+                 Cipher cipher = Cipher.getInstance(TRANSFORMATION);
+                 cipher.init(Cipher.ENCRYPT_MODE, key, new GCMParameterSpec(TAG_LENGTH, iv));
+                 byte[] encrypted = cipher.doFinal(plaintext.getBytes(StandardCharsets.UTF_8));
+                 byte[] data = Arrays.copyOf(iv, IV_LENGTH + encrypted.length);
+                 System.arraycopy(encrypted, 0, data, IV_LENGTH, encrypted.length);
+                 return Base64.getEncoder().encodeToString(data);
+             } catch (GeneralSecurityException e) {
+                 throw new IllegalArgumentException("encryption failed", e);
+             }
+         }
+    }
+
+    /**
+     * Where an effective value comes from, see dumpConfiguration()
+     */
+    public enum ValueSource {
+         DEFAULT, // defaultValue of the annotation
+         FILE,    // the configuration file
+         UPDATE   // written to the file by update() in this process
+    }
+
+    /**
+     * JMX view, see registerMBean()
+     */
+    public interface ConfigManagerMBean {
+         String dumpConfiguration();
+         String dumpAccessCounts();
+         String getReloadStatus();
+         String dumpHistory();
+         void rollback(String file, long generation, boolean pin);
+    }
+
+    /**
+     * Result of the reloads so far, a failed reload (conversion or validation error)
+     * publishes nothing and keeps the previous instances.
+     */
+    public static final class ReloadStatus {
+         private final long reloads;
+         private final long failures;
+         private final String lastError;
+         private final long lastFailure;
+
+         private ReloadStatus(long reloads, long failures, String lastError, long lastFailure) {
+             this.reloads = reloads;
+             this.failures = failures;
+             this.lastError = lastError;
+             this.lastFailure = lastFailure;
+         }
+
+         public long getReloads()      { return reloads; }
+         public long getFailures()     { return failures; }
+         public String getLastError()  { return lastError; } // null if no reload failed
+         public long getLastFailure()  { return lastFailure; } // epoch millis, 0 if no reload failed
+
+         @Override
+         public String toString() {
+             return "ReloadStatus [reloads=" + reloads + ", failures=" + failures + ", lastError=" + lastError + "]";
+         }
+    }
+
+    /**
+     * A generated instance in the history of an interface, see history() and rollback()
+     */
+    public static final class Generation {
+         private final long generation;
+         private final long created;
+         private final String fingerprint;
+         private final boolean active;
+
+         private Generation(long generation, long created, String fingerprint, boolean active) {
+             this.generation = generation;
+             this.created = created;
+             this.fingerprint = fingerprint;
+             this.active = active;
+         }
+
+         public long getGeneration()    { return generation; } // increasing over all interfaces
+         public long getCreated()       { return created; } // epoch millis
+         public String getFingerprint() { return fingerprint; } // SHA-256 of the values
+         public boolean isActive()      { return active; } // returned by get()
+
+         @Override
+         public String toString() {
+             return "Generation [generation=" + generation + ", created=" + Instant.ofEpochMilli(created) + ", fingerprint=" + fingerprint
+                     + ", active=" + active + "]";
+         }
+    }
+
+    /**
+     * The settings of a manager created by create(Options), the defaults are those of the static methods
+     */
+    public static final class Options {
+         private String name;
+         private ClassLoader classLoader;
+         private boolean countAccess = Boolean.getBoolean("de.codecoverage.config.countAccess");
+         private boolean deferLoading = Boolean.getBoolean("de.codecoverage.config.deferLoading");
+         private int historySize = Integer.getInteger("de.codecoverage.config.historySize", 8);
+         private int maxTenants = 1024;
+         private Executor listenerExecutor;
+
+         // the name of the watcher thread and of the MBean: "de.codecoverage.config:type=ConfigManager,name=..."
+         public Options name(String name)                    { this.name = name; return this; }
+         // finds the pre-built classes (ServiceLoader), default is the loader of the ConfigManager
+         public Options classLoader(ClassLoader classLoader) { this.classLoader = classLoader; return this; }
+         public Options countAccess(boolean enabled)         { this.countAccess = enabled; return this; }
+         public Options deferLoading(boolean enabled)        { this.deferLoading = enabled; return this; }
+         public Options listenerExecutor(Executor executor)  { this.listenerExecutor = executor; return this; }
+
+         public Options historySize(int size) {
+              if (size < 1)
+                  throw new IllegalArgumentException("size must be > 0");
+              this.historySize = size;
+              return this;
+         }
+
+         public Options maxTenants(int max) {
+              if (max < 1)
+                  throw new IllegalArgumentException("max must be > 0");
+              this.maxTenants = max;
+              return this;
+         }
+    }
+
+    /**
+     * A manager with its own instances, watcher thread and listeners, see create(Options).
+     * The methods are those of the static facade.
+     */
+    public static final class Instance implements AutoCloseable {
+         private final ConfigManager manager;
+
+         private Instance(ConfigManager manager) {
+              this.manager = manager;
+         }
+
+         public <T> T get(Class<T> interfaceClass)                                       { return manager.getIntern(interfaceClass); }
+         public <T> T get(Class<T> interfaceClass, String tenantId)                      { return manager.getIntern(interfaceClass, tenantId); }
+         public Set<String> tenants(Class<?> interfaceClass)                             { return manager.tenantsIntern(interfaceClass); }
+         public <T> void update(Class<T> interfaceClass, String key, String value)       { manager.updateIntern(interfaceClass, key, value); }
+         public <T> void update(Class<T> interfaceClass, Map<String, String> values)     { manager.updateIntern(interfaceClass, values); }
+         public <T> void addListener(Class<T> interfaceClass, ConfigListener<? super T> listener)    { manager.addListenerIntern(interfaceClass, listener); }
+         public <T> void removeListener(Class<T> interfaceClass, ConfigListener<? super T> listener) { manager.removeListenerIntern(interfaceClass, listener); }
+         public void registerDecoder(String name, ValueDecoder decoder)                  { manager.registerDecoderIntern(name, decoder); }
+         public List<Generation> history(Class<?> interfaceClass)                        { return manager.historyIntern(interfaceClass); }
+         public void rollback(Class<?> interfaceClass, long generation, boolean pin)     { manager.rollbackIntern(interfaceClass, generation, pin); }
+         public void rollback(Path file, long generation, boolean pin)                   { manager.rollbackIntern(file, generation, pin); }
+         public boolean isReady()                                                        { return manager.isReadyIntern(); }
+         public boolean awaitReady(long timeout, TimeUnit unit) throws InterruptedException { return manager.awaitReadyIntern(timeout, unit); }
+         public ReloadStatus getReloadStatus()                                           { return manager.getReloadStatusIntern(); }
+         public Map<String, Long> getAccessCounts(Class<?> interfaceClass)               { return manager.getAccessCountsIntern(interfaceClass); }
+         public String dumpAccessCounts()                                                { return manager.dumpAccessCountsIntern(); }
+         public String dumpConfiguration()                                               { return manager.dumpConfigurationIntern(); }
+         public String dumpHistory()                                                     { return manager.dumpHistoryIntern(); }
+         public void registerMBean()                                                     { manager.registerMBeanIntern(); }
+
+         /**
+         * Stops the watcher and the listener threads, unregisters the MBean and drops all instances.
+         * The instances already returned keep working with their values, get(), update(), addListener()
+         * and the other operations of this manager throw an IllegalStateException afterwards.
+         */
+         @Override
+         public void close() {
+              manager.shutdownIntern();
+         }
+    }
+
+    // A generated configuration: the instance, its (resolved) values and the fingerprint used for change detection
+    private static final class Snapshot
+    {
+    	private final Object instance;
+    	private final String fingerprint;
+    	private final Map<String, String> values;
+    	private final Set<String> changedKeys; // compared to the previous snapshot
+    	private final Map<String, LongAdder> reads; // key -> counter of the accessor, empty without access counting
+    	private final Map<String, ValueSource> sources; // key -> where the value comes from
+    	private final String file;
+    	private final Set<String> secrets; // decoded keys, their values are HMACs
+    	private final long created = System.currentTimeMillis();
+    	private final long generation = GENERATIONS.incrementAndGet();
+
+    	private Snapshot(Object instance, String fingerprint, Map<String, String> values, Set<String> changedKeys, Map<String, LongAdder> reads,
+    			Map<String, ValueSource> sources, String file, Set<String> secrets) {
+    		this.instance = instance;
+    		this.fingerprint = fingerprint;
+    		this.values = values;
+    		this.changedKeys = changedKeys;
+    		this.reads = reads;
+    		this.sources = sources;
+    		this.file = file;
+    		this.secrets = secrets;
+    	}
+    }
+
+    // Runs the tasks of one interface in order on the listener executor, see java.util.concurrent.Executor
+    private final class SerialExecutor implements Executor
+    {
+    	private final ArrayDeque<Runnable> tasks = new ArrayDeque<>();
+    	private Runnable active;
+
+    	@Override
+    	public synchronized void execute(Runnable r) {
+    		tasks.add(() -> {
+    			try {
+    				r.run();
+    			} finally {
+    				try {
+    					scheduleNext();
+    				} catch (RejectedExecutionException e) {
+    					LOG.log(Level.SEVERE, "Listener rejected", e);
+    				}
+    			}
+    		});
+    		if (active == null) {
+    			scheduleNext();
+    		}
+    	}
+
+    	private synchronized void scheduleNext() {
+    		if ((active = tasks.poll()) != null) {
+    			try {
+    				listenerExecutor().execute(active);
+    			} catch (RejectedExecutionException e) {
+    				active = null; // the task is dropped, the next execute() schedules the queued ones
+    				if (!closeFileSystemThreadLoop)
+    					throw e;
+    				tasks.clear(); // closed, the listeners are dropped
+    			}
+    		}
+    	}
+    }
+
+    // One instance per tenant of a config interface, see get(Class, String)
+    private static final class Tenant
+    {
+    	private final Path path;
+    	private volatile Snapshot value;
+    	private long lastAccess = System.nanoTime(); // racy by intention, only used to find the least recently used
+
+    	private Tenant(Path path, Snapshot value) {
+    		this.path = path;
+    		this.value = value;
+    	}
+    }
+
+    // also the lock of the tenant loads of one interface, see loadTenant()
+    private static final class Tenants
+    {
+    	private final ConcurrentHashMap<String, Tenant> byId = new ConcurrentHashMap<>(64);
+    	// tenants with the same configuration share one instance
+    	private final ConcurrentHashMap<String, WeakReference<Snapshot>> shared = new ConcurrentHashMap<>(64);
+    }
+
+    // The class of all tenants of an interface (and of its nested groups), generated once: the values
+    // are final fields set by the constructor instead of constants in a class per configuration
+    private static final class Template
+    {
+    	private final String className;
+    	private final Method[] methods; // the order of the constructor arguments
+    	private final Template[] groups; // by method index, the template of a nested group
+    	private Constructor<?> constructor; // set once the classes are defined, see define()
+    	private Map<String, LongAdder> reads = Collections.emptyMap();
+
+    	private Template(String className, Method[] methods, Template[] groups) {
+    		this.className = className;
+    		this.methods = methods;
+    		this.groups = groups;
+    	}
+
+    	private void define(ClassLoader loader) throws ReflectiveOperationException {
+    		constructor = loader.loadClass(className.replace('/', '.')).getDeclaredConstructor(Object[].class);
+    		for (Template group : groups) {
+    			if (group != null)
+    				group.define(loader);
+    		}
+    	}
+
+    	// values: see resolveValues(), a nested group is the map of its values
+    	@SuppressWarnings("unchecked")
+    	private Object newInstance(Map<Method, Object> values) throws ReflectiveOperationException {
+    		Object[] args = new Object[methods.length];
+    		for (int i = 0; i < methods.length; i++) {
+    			Object value = values.get(methods[i]);
+    			args[i] = groups[i] != null ? groups[i].newInstance((Map<Method, Object>) value) : value;
+    		}
+    		return constructor.newInstance((Object) args);
+    	}
+    }
+
+    private static final long WATCH_SETTLE_MILLIS = 50;
+    private static final long ROLLOUT_MIX1 = 0x9E3779B97F4A7C15L;
+    private static final long ROLLOUT_MIX2 = 0xBF58476D1CE4E5B9L;
+    private static final String TENANT_PLACEHOLDER = "{tenant}";
+    private static final String SECRET_MASK = "****";
+    private static final AtomicLong GENERATIONS = new AtomicLong();
     private static final Logger LOG = Logger.getLogger(ConfigManager.class.getName());
+    private static final boolean CAN_DEFINE_CLASSES = System.getProperty("org.graalvm.nativeimage.imagecode") == null;
     private static final Map<Class<?>, Function<String, ?>> CONVERTERS = new HashMap<>();
     static {
          CONVERTERS.put(int.class, Integer::valueOf);
@@ -133,16 +578,104 @@ public final class ConfigManager {
          CONVERTERS.put(byte.class, Byte::valueOf);
          CONVERTERS.put(Byte.class, Byte::valueOf);
     }
-    private static final WatchService watchService = getWatchService();
- 
-    private static volatile boolean closeFileSystemThreadLoop = false;
- 
-    private ConfigManager() {
+    // the manager of the static methods, created on first use and again after shutdown()
+    private static final Object DEFAULT_LOCK = new Object();
+    private static volatile ConfigManager defaultManager;
+    // the settings of the static setters, kept for the next default manager after shutdown(), guarded by DEFAULT_LOCK
+    private static final Options DEFAULT_OPTIONS = new Options();
+
+    // all state below belongs to one manager, see create(Options)
+    private final ClassLoader classLoader;
+    private final ObjectName objectName;
+    private final ConcurrentHashMap<Class<?>, Snapshot> cache = new ConcurrentHashMap<>(16);
+    private final ConcurrentHashMap<Class<?>, Tenants> tenantsByInterface = new ConcurrentHashMap<>(8);
+    private final ConcurrentHashMap<Class<?>, CopyOnWriteArrayList<ConfigListener<?>>> listenersByInterface = new ConcurrentHashMap<>(8);
+    private final ConcurrentHashMap<Class<?>, SerialExecutor> listenerQueues = new ConcurrentHashMap<>(8);
+    // files written by update(): size and hash of the content, the watcher ignores these events
+    private final ConcurrentHashMap<Path, Pair<Long, String>> selfWrites = new ConcurrentHashMap<>(8);
+    // key -> value written by update() per file, the source of these values is UPDATE
+    private final ConcurrentHashMap<Path, Map<String, String>> updatedValues = new ConcurrentHashMap<>(8);
+    // NAME(...) -> decoder, none by default
+    private final ConcurrentHashMap<String, ValueDecoder> decoders = new ConcurrentHashMap<>(4);
+    // random key of the HMAC of decoded secrets, the stored hash can't be matched against guessed plaintexts
+    private final SecretKeySpec secretsKey = new SecretKeySpec(randomBytes(32), "HmacSHA256");
+    // interfaces serving their defaults while the file is loaded in the background, see setDeferredLoading()
+    private final ConcurrentHashMap<Class<?>, CountDownLatch> pending = new ConcurrentHashMap<>(8);
+    private final Object reloadLock = new Object();
+    // (file, interface loader) -> the loader of the interfaces of the file loaded by get(), replaced by the loaders
+    // of a reload. A replaced class stays loaded until the other classes of its loader are replaced too.
+    private final ConcurrentHashMap<Pair<Path, ClassLoader>, ByteArrayLoader> fileLoaders = new ConcurrentHashMap<>(8);
+    // the last published snapshots per interface, newest first, guarded by the reloadLock
+    private final ConcurrentHashMap<Class<?>, ArrayDeque<Snapshot>> histories = new ConcurrentHashMap<>(16);
+    // pinned by rollback(): interface -> the snapshot of the file it replaced, a reload publishes only a changed file
+    private final ConcurrentHashMap<Class<?>, Snapshot> pins = new ConcurrentHashMap<>(8);
+    private final ConcurrentHashMap<Class<?>, Map<String, String>> interfaceDefaults = new ConcurrentHashMap<>(16);
+    // (interface, access counting) -> the class of its tenants
+    private final ConcurrentHashMap<Pair<Class<?>, Boolean>, Template> templates = new ConcurrentHashMap<>(8);
+    private final ConcurrentHashMap<Path, ConcurrentHashMap<Path, Boolean>> dirs2Watch = new ConcurrentHashMap<>(8);
+    // directory -> its registration, canceled when no file of the directory is bound anymore, guarded by dirs2Watch
+    private final HashMap<Path, WatchKey> watchKeys = new HashMap<>(8);
+    // generated at compile time by the ConfigProcessor, there is no class definition at runtime in a native image
+    private final Map<Class<?>, Object> prebuiltInstances;
+    private final WatchService watchService;
+    private final Thread watcherThread;
+
+    private volatile boolean closeFileSystemThreadLoop = false;
+    private volatile int maxTenants;
+    private volatile int historySize;
+    private volatile Executor listenerExecutor;
+    private ExecutorService ownListenerExecutor; // created by listenerExecutor(), shut down by close()
+    private volatile boolean countAccess;
+    private volatile boolean deferLoading;
+    private volatile ReloadStatus reloadStatus = new ReloadStatus(0, 0, null, 0);
+
+    private ConfigManager(Options options) {
+         classLoader = options.classLoader != null ? options.classLoader : ConfigManager.class.getClassLoader();
+         objectName = mbeanName(options.name);
+         maxTenants = options.maxTenants;
+         historySize = options.historySize;
+         listenerExecutor = options.listenerExecutor;
+         countAccess = options.countAccess;
+         deferLoading = options.deferLoading;
+         prebuiltInstances = loadPrebuilt(classLoader);
+         watchService = getWatchService();
+         watcherThread = createWatchThread(options.name);
+    }
+
+    /**
+    * A new manager with its own instances, file watcher, listeners and MBean, e.g. one per deployment
+    * in an application server: close() stops the watcher and releases all generated classes.
+    * The static methods use a default manager.
+    *
+    * @param options e.g. new Options().name("app")
+    * @return the manager, close it on undeploy
+    */
+    public static Instance create(Options options) {
+         return new Instance(new ConfigManager(options));
+    }
+
+    private static ConfigManager defaultManager() {
+         ConfigManager manager = defaultManager;
+         if (manager == null) {
+             synchronized (DEFAULT_LOCK) {
+                 manager = defaultManager;
+                 if (manager == null)
+                     defaultManager = manager = new ConfigManager(DEFAULT_OPTIONS);
+             }
+         }
+         return manager;
     }
  
+    private static ObjectName mbeanName(String name) {
+         try {
+             return new ObjectName("de.codecoverage.config:type=ConfigManager" + (name == null ? "" : ",name=" + ObjectName.quote(name)));
+         } catch (MalformedObjectNameException e) {
+             throw new IllegalArgumentException(e);
+         }
+    }
+
     private static WatchService getWatchService() {
          try {
-             assert WATCHER_THREAD != null;
              return FileSystems.getDefault().newWatchService();
          } catch (IOException e) {
              LOG.log(Level.SEVERE, e.getMessage(), e); // Game over
@@ -150,31 +683,41 @@ public final class ConfigManager {
          return null;
     }
  
-    private static Thread createWatchThread() {
+    private Thread createWatchThread(String name) {
          Thread thr = new Thread(() -> {
              Thread currentThread = Thread.currentThread();
              String thrName = currentThread.getName();
              while (!closeFileSystemThreadLoop) {
                  try {
-                     if (!DIRS2WATCH.isEmpty()) {
-                    	  List<Path> folders = DIRS2WATCH.keySet().stream().collect(Collectors.toList());
+                     if (!dirs2Watch.isEmpty()) {
+                    	  List<Path> folders = dirs2Watch.keySet().stream().collect(Collectors.toList());
                           currentThread.setName("ConfigManager waiting for file changes in " + folders);
                           WatchKey wk = watchService.take();
+                          // in-place writers truncate first, the events of one write are collected by the same key
+                          Thread.sleep(WATCH_SETTLE_MILLIS);
                           Path directory = Path.class.cast(wk.watchable());
                           List<WatchEvent<?>> events = wk.pollEvents();
                           for (WatchEvent<?> event : events) {
                               Path fileName = (Path) event.context(); // file name
-                              for (Entry<Path, ConcurrentHashMap<Path, Boolean>> dir : DIRS2WATCH.entrySet()) {
+                              for (Entry<Path, ConcurrentHashMap<Path, Boolean>> dir : dirs2Watch.entrySet()) {
                                   if (directory.equals(dir.getKey()) && dir.getValue().containsKey(fileName)) {
-                                      LOG.info(() -> "File: '" + fileName + "' has changed in directory '" + dir.getKey() + "' Reloading all configurations.");
-                                      currentThread.setName("reloadAll");
-                                      // When a file changes, we trigger a reload of all configuration files. 
-                                      // This is not optimal, but internally we check whether the properties have really changed
-                                      try {
-                                    	  reloadAll();
-                                      } catch (Exception e) {
-                                    	  // Don't just let it die just because someone made a typo on a number
-                                    	  LOG.log(Level.SEVERE, e.getMessage(), e);
+                                      Path changedFile = dir.getKey().resolve(fileName);
+                                      synchronized (reloadLock) {
+                                          if (closeFileSystemThreadLoop)
+                                              break;
+                                          if (isSelfWrite(changedFile)) {
+                                              LOG.fine(() -> "File: '" + changedFile + "' was written by update(), already reloaded.");
+                                              continue;
+                                          }
+                                          LOG.info(() -> "File: '" + fileName + "' has changed in directory '" + dir.getKey() + "' Reloading its configurations.");
+                                          currentThread.setName("reloadFile");
+                                          // only the interfaces and tenants of the changed file, an invalid file doesn't block the others
+                                          try {
+                                        	  reloadFile(changedFile);
+                                          } catch (Exception e) {
+                                        	  // Don't just let it die just because someone made a typo on a number, reload() logged it
+                                        	  LOG.log(Level.FINE, e.getMessage(), e);
+                                          }
                                       }
                                   }
                               }
@@ -189,18 +732,316 @@ public final class ConfigManager {
                      currentThread.setName(thrName);
                  }
              }
-         });
+         }, name == null ? "ConfigManager" : "ConfigManager " + name);
          thr.setDaemon(true);
          thr.start();
          return thr;
     }
  
-    private static void reloadAll() {
-         CACHE.entrySet().stream()
-             .filter(e -> e.getValue().p2.p2)
-             .forEach(e -> getIntern(e.getKey(), true));
+    // only the interfaces bound to the file
+    private void reloadFile(Path file) {
+         reload(classesOf(file), file);
+    }
+
+    // the loaded interfaces bound to the file
+    private List<Class<?>> classesOf(Path file) {
+         List<Class<?>> classes = new ArrayList<>();
+         for (Class<?> c : cache.keySet()) {
+             String providerString = resolveProviderString(c.getAnnotation(Configurable.class).filePath());
+             if (providerString != null && Paths.get(providerString).toAbsolutePath().equals(file))
+                 classes.add(c);
+         }
+         return classes;
+    }
+
+    // Two phases: all interfaces (and the tenants of the changed file) are loaded and validated first,
+    // only if all succeed the new instances are published. Otherwise the last good ones stay in use.
+    private void reload(List<Class<?>> classes, Path changedFile) {
+         Map<Class<?>, Snapshot[]> next = new LinkedHashMap<>();
+         Map<Tenant, Snapshot> nextTenants = new LinkedHashMap<>();
+         // the changed interfaces of one file (and one interface class loader) are defined by one class loader
+         Map<Pair<Path, ClassLoader>, ByteArrayLoader> loaders = new HashMap<>();
+         Set<Class<?>> unpinned = new HashSet<>();
+         try {
+             for (Class<?> c : classes) {
+                 Snapshot old = cache.get(c);
+                 if (old == null)
+                     continue;
+                 // a pinned rollback stays until the file differs from the state it replaced
+                 Snapshot pinned = pins.get(c);
+                 Snapshot value = createConcreteObject(c, null, pinned != null ? pinned : old, null, false, loaders);
+                 if (pinned != null) {
+                     if (value == pinned)
+                         value = old;
+                     else
+                         unpinned.add(c);
+                 }
+                 next.put(c, new Snapshot[] { old, value });
+             }
+             // tenants have their own files, only the ones of the changed file are reloaded
+             for (Entry<Class<?>, Tenants> tenants : tenantsByInterface.entrySet()) {
+                 synchronized (tenants.getValue()) { // see loadTenant()
+                     for (Entry<String, Tenant> t : tenants.getValue().byId.entrySet()) {
+                         if (t.getValue().path.equals(changedFile)) {
+                             nextTenants.put(t.getValue(), createConcreteObject(tenants.getKey(), t.getKey(), t.getValue().value, tenants.getValue().shared, false, loaders));
+                         }
+                     }
+                 }
+             }
+         } catch (RuntimeException e) {
+             ReloadStatus status = reloadStatus;
+             reloadStatus = new ReloadStatus(status.reloads, status.failures + 1, String.valueOf(e.getMessage()), System.currentTimeMillis());
+             LOG.severe(() -> "Reload of '" + changedFile + "' failed, the previous configuration stays in use: " + e.getMessage());
+             throw e;
+         }
+         for (Entry<Class<?>, Snapshot[]> e : next.entrySet()) {
+             Snapshot old = e.getValue()[0];
+             Snapshot value = e.getValue()[1];
+             if (value != old) {
+                 publish(e.getKey(), value);
+                 if (unpinned.contains(e.getKey())) {
+                     pins.remove(e.getKey());
+                     fireChanged(e.getKey(), old, value, changedKeys(old, value.values));
+                 } else {
+                     fireChanged(e.getKey(), old, value, value.changedKeys);
+                 }
+             }
+         }
+         nextTenants.forEach((t, value) -> t.value = value);
+         fileLoaders.putAll(loaders); // interfaces of these files loaded later join the new loaders
+         // an interface bound to another file now (its placeholder changed) leaves the state of the old one
+         for (Snapshot[] s : next.values()) {
+             if (s[0].file != null && !Paths.get(s[0].file).toAbsolutePath().equals(changedFile))
+                 unwatch(Paths.get(s[0].file).toAbsolutePath());
+         }
+         ReloadStatus status = reloadStatus;
+         reloadStatus = new ReloadStatus(status.reloads + 1, status.failures, status.lastError, status.lastFailure);
+    }
+
+    // drops the watch and the state kept per file once no loaded interface or tenant is bound to it
+    private void unwatch(Path file) {
+         if (!classesOf(file).isEmpty())
+             return;
+         for (Tenants tenants : tenantsByInterface.values()) {
+             for (Tenant t : tenants.byId.values()) {
+                 if (t.path.equals(file))
+                     return;
+             }
+         }
+         selfWrites.remove(file);
+         updatedValues.remove(file);
+         fileLoaders.keySet().removeIf(k -> k.p1.equals(file));
+         synchronized (dirs2Watch) {
+             Path directory = file.getParent();
+             ConcurrentHashMap<Path, Boolean> files = dirs2Watch.get(directory);
+             if (files != null && files.remove(file.getFileName()) != null && files.isEmpty()) {
+                 dirs2Watch.remove(directory);
+                 WatchKey key = watchKeys.remove(directory);
+                 if (key != null)
+                     key.cancel();
+             }
+         }
+    }
+
+    // under the reloadLock: the new instance of get() and the history
+    private void publish(Class<?> interfaceClass, Snapshot value) {
+         cache.put(interfaceClass, value);
+         ArrayDeque<Snapshot> history = histories.computeIfAbsent(interfaceClass, c -> new ArrayDeque<>());
+         history.addFirst(value);
+         while (history.size() > historySize)
+             history.removeLast();
+    }
+
+    /**
+    * @param size the number of generated instances kept per interface for rollback(), default 8
+    *             (or -Dde.codecoverage.config.historySize). Each keeps its classes loaded.
+    */
+    public static void setHistorySize(int size) {
+         synchronized (DEFAULT_LOCK) {
+             DEFAULT_OPTIONS.historySize(size);
+             defaultManager().setHistorySizeIntern(size);
+         }
+    }
+
+    private void setHistorySizeIntern(int size) {
+         if (size < 1)
+             throw new IllegalArgumentException("size must be > 0");
+         historySize = size;
+    }
+
+    /**
+    * @param interfaceClass the "config" interface
+    * @return the generations kept for rollback(), newest first
+    */
+    public static List<Generation> history(Class<?> interfaceClass) {
+         return defaultManager().historyIntern(interfaceClass);
+    }
+
+    private List<Generation> historyIntern(Class<?> interfaceClass) {
+         synchronized (reloadLock) {
+             List<Generation> result = new ArrayList<>();
+             Snapshot active = cache.get(interfaceClass);
+             for (Snapshot p : histories.getOrDefault(interfaceClass, new ArrayDeque<>()))
+                 result.add(new Generation(p.generation, p.created, sha256(p.fingerprint), p == active));
+             return result;
+         }
+    }
+
+    /**
+    * @return the history of all loaded interfaces, one line per generation, * marks the active one
+    */
+    public static String dumpHistory() {
+         return defaultManager().dumpHistoryIntern();
+    }
+
+    private String dumpHistoryIntern() {
+         Map<String, Class<?>> classes = new TreeMap<>();
+         cache.keySet().forEach(c -> classes.put(c.getName(), c));
+         StringBuilder sb = new StringBuilder();
+         for (Entry<String, Class<?>> e : classes.entrySet()) {
+             sb.append(e.getKey()).append(pins.containsKey(e.getValue()) ? " (pinned)" : "").append(System.lineSeparator());
+             for (Generation g : historyIntern(e.getValue())) {
+                 sb.append(g.isActive() ? "  * " : "    ").append(g.getGeneration()).append(' ').append(Instant.ofEpochMilli(g.getCreated()))
+                   .append(' ').append(g.getFingerprint()).append(System.lineSeparator());
+             }
+         }
+         return sb.toString();
+    }
+
+    // the number of entries kept per interface and per file by the default manager, bounded checks of the SoakDriver
+    static Map<String, Integer> stateSizes() {
+         return defaultManager().stateSizesIntern();
+    }
+
+    private Map<String, Integer> stateSizesIntern() {
+         synchronized (reloadLock) {
+             Map<String, Integer> sizes = new LinkedHashMap<>();
+             sizes.put("cache", cache.size());
+             sizes.put("history", histories.values().stream().mapToInt(ArrayDeque::size).sum());
+             sizes.put("selfWrites", selfWrites.size());
+             sizes.put("updatedValues", updatedValues.size());
+             sizes.put("fileLoaders", fileLoaders.size());
+             synchronized (dirs2Watch) {
+                 sizes.put("watchedDirs", dirs2Watch.size());
+                 sizes.put("watchedFiles", dirs2Watch.values().stream().mapToInt(Map::size).sum());
+                 sizes.put("watchKeys", watchKeys.size());
+             }
+             return sizes;
+         }
+    }
+
+    /**
+    * See rollback(Class, long, boolean), not pinned
+    */
+    public static void rollback(Class<?> interfaceClass, long generation) {
+         defaultManager().rollbackIntern(interfaceClass, generation);
+    }
+
+    private void rollbackIntern(Class<?> interfaceClass, long generation) {
+         rollbackIntern(interfaceClass, generation, false);
+    }
+
+    /**
+    * Publishes a previous instance from the history again: no file access, no class generation.
+    * Listeners are notified. Without pin the next reload (of any file, the watcher reloads all)
+    * publishes the values of the file again. A pinned rollback stays until the file has changed.
+    *
+    * @param interfaceClass the "config" interface
+    * @param generation the newest generation up to this one is published, see history()
+    * @param pin keep it until the file changes
+    */
+    public static void rollback(Class<?> interfaceClass, long generation, boolean pin) {
+         defaultManager().rollbackIntern(interfaceClass, generation, pin);
+    }
+
+    private void rollbackIntern(Class<?> interfaceClass, long generation, boolean pin) {
+         synchronized (reloadLock) {
+             checkOpen();
+             republish(interfaceClass, find(interfaceClass, generation), pin);
+         }
+    }
+
+    /**
+    * Rollback of all loaded interfaces bound to the file, see rollback(Class, long, boolean).
+    * Generations are increasing over all interfaces: each one gets its newest generation up to this one.
+    *
+    * @param file the file
+    * @param generation e.g. the active generation of one of the interfaces before the bad change
+    * @param pin keep it until the file changes
+    */
+    public static void rollback(Path file, long generation, boolean pin) {
+         defaultManager().rollbackIntern(file, generation, pin);
+    }
+
+    private void rollbackIntern(Path file, long generation, boolean pin) {
+         Path path = file.toAbsolutePath();
+         synchronized (reloadLock) {
+             checkOpen();
+             List<Class<?>> classes = classesOf(path);
+             if (classes.isEmpty())
+                 throw new IllegalArgumentException("No loaded interface is bound to " + path);
+             Map<Class<?>, Snapshot> targets = new LinkedHashMap<>();
+             for (Class<?> c : classes)
+                 targets.put(c, find(c, generation)); // all or nothing
+             targets.forEach((c, target) -> republish(c, target, pin));
+         }
+    }
+
+    // the newest snapshot in the history up to the generation
+    private Snapshot find(Class<?> interfaceClass, long generation) {
+         for (Snapshot p : histories.getOrDefault(interfaceClass, new ArrayDeque<>())) {
+             if (p.generation <= generation)
+                 return p;
+         }
+         throw new IllegalArgumentException("Generation " + generation + " of " + interfaceClass.getName() + " not in the history");
+    }
+
+    private void republish(Class<?> interfaceClass, Snapshot target, boolean pin) {
+         Snapshot current = cache.get(interfaceClass);
+         if (pin)
+             pins.put(interfaceClass, histories.get(interfaceClass).peekFirst()); // the newest is the state of the file
+         else
+             pins.remove(interfaceClass);
+         if (target != current) {
+             cache.put(interfaceClass, target);
+             fireChanged(interfaceClass, current, target, changedKeys(current, target.values));
+         }
+         LOG.warning(() -> "Rollback of " + interfaceClass.getName() + " to generation " + target.generation + (pin ? ", pinned" : ""));
+    }
+
+    /**
+    * @return the number of reloads and failed reloads, a failed reload keeps the previous configuration
+    */
+    public static ReloadStatus getReloadStatus() {
+         return defaultManager().getReloadStatusIntern();
+    }
+
+    private ReloadStatus getReloadStatusIntern() {
+         return reloadStatus;
     }
     
+    /**
+    * The bucket of an id for @RolloutFlag, the generated method returns bucket < percent.
+    * A 64 bit multiply/xorshift mix (like splitmix64), so consecutive ids are spread evenly.
+    *
+    * @param id the bucketing id, e.g. a user id
+    * @return 0..99
+    */
+    public static int rolloutBucket(long id) {
+         long z = id * ROLLOUT_MIX1;
+         z = (z ^ (z >>> 32)) * ROLLOUT_MIX2;
+         z = z ^ (z >>> 32);
+         return (int) ((z >>> 1) % 100);
+    }
+
+    /**
+    * @param id the bucketing id, its String.hashCode() is used
+    * @return 0..99
+    */
+    public static int rolloutBucket(String id) {
+         return rolloutBucket((long) id.hashCode());
+    }
+
 	private static String getReturnSignature(Class<?> type) {
 		if (type == String.class)       return "()Ljava/lang/String;";
 		else if (type == boolean.class) return "()Z";
@@ -217,123 +1058,1082 @@ public final class ConfigManager {
     * @return an Object implementing this interface
     */
     public static <T> T get(Class<T> interfaceClass) {
-         return getIntern(interfaceClass, false);
+         return defaultManager().getIntern(interfaceClass);
     }
  
+    /**
+    * Get an object which has the concrete configuration of a tenant. The file path of the
+    * interface is a template, "{tenant}" is replaced by the tenant id. Tenants are loaded lazily,
+    * the least recently used are evicted if there are more than setMaxTenants().
+    *
+    * @param interfaceClass the "config" interface to create
+    * @param tenantId the tenant, only [A-Za-z0-9_.-] is allowed
+    * @return an Object implementing this interface
+    */
+    public static <T> T get(Class<T> interfaceClass, String tenantId) {
+         return defaultManager().getIntern(interfaceClass, tenantId);
+    }
+
     @SuppressWarnings("unchecked")
-    private static <T> T getIntern(Class<T> interfaceClass, boolean forceRemove) {
-         Pair<Object, Pair<String, Boolean>> p = CACHE.get(interfaceClass);
-         if (p == null || forceRemove) {
-             Pair<Object, Pair<String, Boolean>> value = createConcreteObject(interfaceClass, p, forceRemove);
-             p = CACHE.putIfAbsent(interfaceClass, value);
-             if (p == null) {
-                 p = value;
-             }
+    private <T> T getIntern(Class<T> interfaceClass, String tenantId) {
+         Tenants tenants = tenantsByInterface.get(interfaceClass);
+         Tenant t = tenants != null ? tenants.byId.get(tenantId) : null;
+         if (t == null) {
+             checkOpen();
+             t = loadTenant(interfaceClass, tenantId);
          }
-         return (T) p.p1;
+         t.lastAccess = System.nanoTime();
+         return (T) t.value.instance;
     }
- 
-    private static <T> Pair<Object, Pair<String, Boolean>> createConcreteObject(Class<T> interfaceClass, Pair<Object, Pair<String, Boolean>> in, boolean forceRemove)
-    {
-         if (!interfaceClass.isInterface()) {
-             throw new IllegalArgumentException(interfaceClass + " not an interface");
+
+    /**
+    * @param interfaceClass the "config" interface
+    * @return the ids of the tenants currently loaded
+    */
+    public static Set<String> tenants(Class<?> interfaceClass) {
+         return defaultManager().tenantsIntern(interfaceClass);
+    }
+
+    private Set<String> tenantsIntern(Class<?> interfaceClass) {
+         checkOpen();
+         Tenants tenants = tenantsByInterface.get(interfaceClass);
+         return tenants == null ? Collections.emptySet() : Collections.unmodifiableSet(new HashSet<>(tenants.byId.keySet()));
+    }
+
+    /**
+    * @param max the number of tenants per config interface kept in memory
+    */
+    public static void setMaxTenants(int max) {
+         synchronized (DEFAULT_LOCK) {
+             DEFAULT_OPTIONS.maxTenants(max);
+             defaultManager().setMaxTenantsIntern(max);
          }
- 
-         if (!interfaceClass.isAnnotationPresent(Configurable.class)) {
-             throw new IllegalArgumentException("Interface:" + interfaceClass + " not annotated with Configurable");
+    }
+
+    private void setMaxTenantsIntern(int max) {
+         if (max < 1)
+             throw new IllegalArgumentException("max must be > 0");
+         maxTenants = max;
+    }
+
+    private Tenant loadTenant(Class<?> interfaceClass, String tenantId) {
+         if (tenantId == null || !tenantId.matches("[A-Za-z0-9_-][A-Za-z0-9_.-]*")) {
+             throw new IllegalArgumentException("Invalid tenant id: " + tenantId);
          }
- 
-         boolean isFineLogging = LOG.isLoggable(Level.FINE);
+         Tenants tenants = tenantsByInterface.computeIfAbsent(interfaceClass, c -> new Tenants());
+         // Not the reloadLock: a cold tenant doesn't block the reloads and the other interfaces. A reload
+         // of the tenant's file takes this lock too, so it can't run between reading and adding (stale).
+         synchronized (tenants) {
+             Tenant t = tenants.byId.get(tenantId);
+             if (t == null) {
+                 checkOpen();
+                 Path path = Paths.get(tenantFilePath(interfaceClass, tenantId)).toAbsolutePath();
+                 t = new Tenant(path, createConcreteObject(interfaceClass, tenantId, null, tenants.shared));
+                 tenants.byId.put(tenantId, t);
+             }
+             if (tenants.byId.size() > maxTenants) {
+                 evictTenants(tenants, t);
+             }
+             return t;
+         }
+    }
+
+    private void evictTenants(Tenants tenants, Tenant keep) {
+         while (tenants.byId.size() > maxTenants) {
+             Entry<String, Tenant> eldest = null;
+             for (Entry<String, Tenant> e : tenants.byId.entrySet()) {
+                 if (e.getValue() != keep && (eldest == null || e.getValue().lastAccess - eldest.getValue().lastAccess < 0))
+                     eldest = e;
+             }
+             if (eldest == null)
+                 break;
+             tenants.byId.remove(eldest.getKey(), eldest.getValue());
+             unwatch(eldest.getValue().path);
+             if (LOG.isLoggable(Level.FINE)) {
+                 String id = eldest.getKey();
+                 LOG.fine(() -> "evicted tenant '" + id + "'");
+             }
+         }
+         tenants.shared.values().removeIf(ref -> ref.get() == null);
+    }
+
+    private static String tenantFilePath(Class<?> interfaceClass, String tenantId) {
+         String providerString = resolveProviderString(interfaceClass.getAnnotation(Configurable.class).filePath());
+         if (providerString == null || !providerString.contains(TENANT_PLACEHOLDER)) {
+             throw new IllegalArgumentException("Interface:" + interfaceClass + " filePath has no " + TENANT_PLACEHOLDER + " placeholder: " + providerString);
+         }
+         return providerString.replace(TENANT_PLACEHOLDER, tenantId);
+    }
+
+    // interface metadata: the (prefixed) keys and their default values, shared by all tenants
+    private Map<String, String> getDefaults(Class<?> interfaceClass) {
+         Map<String, String> defaults = interfaceDefaults.get(interfaceClass);
+         if (defaults == null) {
+             defaults = new HashMap<>();
+             collectDefaults(interfaceClass, "", defaults, new ArrayDeque<>());
+             interfaceDefaults.putIfAbsent(interfaceClass, defaults);
+         }
+         return defaults;
+    }
+
+    /**
+    * Set the value of a key, see update(Class, Map)
+    *
+    * @param interfaceClass the "config" interface, its file is updated
+    * @param key the key
+    * @param value the new value, null removes the key
+    */
+    public static <T> void update(Class<T> interfaceClass, String key, String value) {
+         defaultManager().updateIntern(interfaceClass, key, value);
+    }
+
+    private <T> void updateIntern(Class<T> interfaceClass, String key, String value) {
+         updateIntern(interfaceClass, Collections.singletonMap(key, value));
+    }
+
+    /**
+    * Writes the values atomically (temp file + rename) into the file of the config interface,
+    * comments and the order of the keys are kept. The instances bound to this file are regenerated
+    * in the calling thread, the file watcher ignores the resulting event. If the new values fail
+    * conversion or validation the previous file content is restored and the exception is thrown.
+    *
+    * @param interfaceClass the "config" interface, its file is updated
+    * @param values key -> new value, a null value removes the key
+    */
+    public static <T> void update(Class<T> interfaceClass, Map<String, String> values) {
+         defaultManager().updateIntern(interfaceClass, values);
+    }
+
+    private <T> void updateIntern(Class<T> interfaceClass, Map<String, String> values) {
+         Configurable cc = interfaceClass.getAnnotation(Configurable.class);
+         if (cc == null) {
+             throw new IllegalArgumentException("Interface:" + interfaceClass + " not annotated with Configurable");
+         }
+         String providerString = resolveProviderString(cc.filePath());
+         if (providerString == null) {
+             throw new IllegalArgumentException("System property not found for: " + cc.filePath());
+         }
+         Path path = Paths.get(providerString).toAbsolutePath();
+         if (!isPropertiesFormat(path)) {
+             throw new IllegalArgumentException("update() supports properties files only: " + path);
+         }
+         synchronized (reloadLock) {
+             checkOpen();
+             byte[] original;
+             try {
+                 original = Files.exists(path) ? Files.readAllBytes(path) : null;
+                 writePropertyFile(path, values);
+                 selfWrites.put(path, fileState(path));
+             } catch (IOException e) {
+                 throw new UncheckedIOException("update of " + path + " failed", e);
+             }
+             Map<String, String> updated = updatedValues.getOrDefault(path, Collections.emptyMap());
+             Map<String, String> next = new HashMap<>(updated);
+             values.forEach((key, value) -> {
+                 if (value == null)
+                     next.remove(key);
+                 else
+                     next.put(key, value);
+             });
+             updatedValues.put(path, next);
+             try {
+                 reloadFile(path);
+             } catch (RuntimeException e) {
+                 updatedValues.put(path, updated);
+                 // the values are invalid, the file gets its previous content back
+                 try {
+                     if (original != null) {
+                         writeAtomic(path.toRealPath(), original);
+                         selfWrites.put(path, fileState(path));
+                     } else {
+                         Files.deleteIfExists(path);
+                     }
+                 } catch (IOException io) {
+                     e.addSuppressed(io);
+                 }
+                 throw e;
+             }
+         }
+    }
+
+    // true if the file is unchanged since update() has written it
+    // Not the file time: another write within its resolution (a few ms) with the same size would be ignored
+    private boolean isSelfWrite(Path file) {
+         Pair<Long, String> written = selfWrites.get(file);
+         try {
+             if (written != null && written.equals(fileState(file)))
+                 return true;
+         } catch (IOException e) {
+             // deleted or unreadable, reloaded
+         }
+         selfWrites.remove(file, written); // changed by someone else, the same content later is a change again
+         return false;
+    }
+
+    private static Pair<Long, String> fileState(Path file) throws IOException {
+         byte[] content = Files.readAllBytes(file);
+         try {
+             return Pair.create((long) content.length, Base64.getEncoder().encodeToString(MessageDigest.getInstance("SHA-256").digest(content)));
+         } catch (GeneralSecurityException e) {
+             throw new IllegalArgumentException(e);
+         }
+    }
+
+    // rewrites the file with a temp file + rename, comments and the order of the keys are kept
+    private static void writePropertyFile(Path path, Map<String, String> values) throws IOException {
+         Path target = Files.exists(path) ? path.toRealPath() : path;
+         List<String> lines = Files.exists(target) ? Files.readAllLines(target, StandardCharsets.UTF_8) : new ArrayList<>();
+         List<String> out = new ArrayList<>(lines.size() + values.size());
+         Set<String> written = new HashSet<>();
+         for (int i = 0; i < lines.size(); i++) {
+             String key = propertyKey(lines.get(i));
+             int end = i;
+             while (key != null && end + 1 < lines.size() && isContinued(lines.get(end)))
+                 end++; // value continues on the next line
+             if (key != null && values.containsKey(key)) {
+                 if (values.get(key) != null)
+                     out.add(propertyLine(key, values.get(key)));
+                 written.add(key);
+             } else {
+                 out.addAll(lines.subList(i, end + 1));
+             }
+             i = end;
+         }
+         for (Entry<String, String> e : values.entrySet()) {
+             if (!written.contains(e.getKey()) && e.getValue() != null)
+                 out.add(propertyLine(e.getKey(), e.getValue()));
+         }
+
+         StringBuilder sb = new StringBuilder();
+         for (String line : out)
+             sb.append(line).append(System.lineSeparator());
+         writeAtomic(target, sb.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static void writeAtomic(Path target, byte[] content) throws IOException {
+         Path tmp = Files.createTempFile(target.toAbsolutePath().getParent(), "." + target.getFileName(), ".tmp");
+         try {
+             if (Files.exists(target)) {
+                 try {
+                     Files.setPosixFilePermissions(tmp, Files.getPosixFilePermissions(target));
+                 } catch (UnsupportedOperationException e) {
+                     // not a posix file system
+                 }
+             }
+             Files.write(tmp, content);
+             try {
+                 Files.move(tmp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+             } catch (AtomicMoveNotSupportedException e) {
+                 Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING);
+             }
+         } finally {
+             Files.deleteIfExists(tmp);
+         }
+    }
+
+    // the key of a property line, null for comments and empty lines
+    private static String propertyKey(String line) {
+         int i = 0;
+         while (i < line.length() && " \t\f".indexOf(line.charAt(i)) >= 0)
+             i++;
+         if (i == line.length() || line.charAt(i) == '#' || line.charAt(i) == '!')
+             return null;
+         StringBuilder key = new StringBuilder();
+         for (; i < line.length(); i++) {
+             char c = line.charAt(i);
+             if (c == '\\' && i + 1 < line.length()) {
+                 key.append(line.charAt(++i));
+             } else if ("=: \t\f".indexOf(c) >= 0) {
+                 break;
+             } else {
+                 key.append(c);
+             }
+         }
+         return key.toString();
+    }
+
+    private static boolean isContinued(String line) {
+         int backslashes = 0;
+         for (int i = line.length() - 1; i >= 0 && line.charAt(i) == '\\'; i--)
+             backslashes++;
+         return backslashes % 2 == 1;
+    }
+
+    private static String propertyLine(String key, String value) {
+         StringBuilder sb = new StringBuilder(key.length() + value.length() + 8);
+         escapeProperty(sb, key, true);
+         sb.append('=');
+         escapeProperty(sb, value, false);
+         return sb.toString();
+    }
+
+    private static void escapeProperty(StringBuilder sb, String s, boolean isKey) {
+         for (int i = 0; i < s.length(); i++) {
+             char c = s.charAt(i);
+             switch (c) {
+                 case '\\': sb.append("\\\\"); break;
+                 case '\t':  sb.append("\\t"); break;
+                 case '\n':  sb.append("\\n"); break;
+                 case '\r':  sb.append("\\r"); break;
+                 case '\f':  sb.append("\\f"); break;
+                 case ' ':
+                     if (isKey || i == 0)
+                         sb.append('\\');
+                     sb.append(c);
+                     break;
+                 case '=': case ':': case '#': case '!':
+                     if (isKey)
+                         sb.append('\\');
+                     sb.append(c);
+                     break;
+                 default:
+                     sb.append(c);
+             }
+         }
+    }
+
+    /**
+    * Deferred loading (e.g. for a fast container start on slow volumes): the first get() of an interface
+    * returns an instance of the default values without any file I/O (the pre-built class if there is one).
+    * The file is loaded in a background thread and published like a reload, listeners are notified.
+    * Or -Dde.codecoverage.config.deferLoading=true
+    *
+    * @param enabled applies to the interfaces not yet loaded
+    */
+    public static void setDeferredLoading(boolean enabled) {
+         synchronized (DEFAULT_LOCK) {
+             DEFAULT_OPTIONS.deferLoading(enabled);
+             defaultManager().setDeferredLoadingIntern(enabled);
+         }
+    }
+
+    private void setDeferredLoadingIntern(boolean enabled) {
+         deferLoading = enabled;
+    }
+
+    /**
+    * @return true if no deferred file load is pending, see setDeferredLoading()
+    */
+    public static boolean isReady() {
+         return defaultManager().isReadyIntern();
+    }
+
+    private boolean isReadyIntern() {
+         return pending.isEmpty();
+    }
+
+    /**
+    * Waits for the pending deferred file loads, e.g. in a readiness probe. A failed load counts as done,
+    * the defaults stay in use and getReloadStatus() has the error.
+    *
+    * @param timeout the maximum time to wait
+    * @param unit the unit of timeout
+    * @return true if all loads are done, false if the timeout elapsed
+    * @throws InterruptedException if interrupted while waiting
+    */
+    public static boolean awaitReady(long timeout, TimeUnit unit) throws InterruptedException {
+         return defaultManager().awaitReadyIntern(timeout, unit);
+    }
+
+    private boolean awaitReadyIntern(long timeout, TimeUnit unit) throws InterruptedException {
+         long deadline = System.nanoTime() + unit.toNanos(timeout);
+         for (CountDownLatch done : pending.values()) {
+             if (!done.await(deadline - System.nanoTime(), TimeUnit.NANOSECONDS))
+                 return false;
+         }
+         return true;
+    }
+
+    /**
+    * Register a decoder for values of the form name(...), e.g. "ENC" for ENC(...). The value is decoded
+    * once per (re)load, register it before the first get(). No decoder is registered by default, a
+    * NAME(...) value without a decoder is used as it is; ValueDecoder.BASE64 is available.
+    *
+    * @param name the name in front of the parentheses, e.g. "ENC"
+    * @param decoder e.g. a KeyStoreDecoder
+    */
+    public static void registerDecoder(String name, ValueDecoder decoder) {
+         defaultManager().registerDecoderIntern(name, decoder);
+    }
+
+    private void registerDecoderIntern(String name, ValueDecoder decoder) {
+         checkOpen();
+         if (name == null || !name.matches("[A-Za-z0-9_]+"))
+             throw new IllegalArgumentException("Invalid decoder name: " + name);
+         decoders.put(name, decoder);
+    }
+
+    /**
+    * Access counting: the generated accessors count their calls, see getAccessCounts(). Off by default
+    * (or -Dde.codecoverage.config.countAccess=true), then the generated classes have no counters at all.
+    * Switching the mode regenerates the classes on the next reload, call it before the first get().
+    *
+    * @param enabled true to count the reads of each key
+    */
+    public static void setAccessCounting(boolean enabled) {
+         synchronized (DEFAULT_LOCK) {
+             DEFAULT_OPTIONS.countAccess(enabled);
+             defaultManager().setAccessCountingIntern(enabled);
+         }
+    }
+
+    private void setAccessCountingIntern(boolean enabled) {
+         countAccess = enabled;
+    }
+
+    /**
+    * @param interfaceClass the "config" interface
+    * @return key -> number of reads since the class was generated, empty if not counted
+    */
+    public static Map<String, Long> getAccessCounts(Class<?> interfaceClass) {
+         return defaultManager().getAccessCountsIntern(interfaceClass);
+    }
+
+    private Map<String, Long> getAccessCountsIntern(Class<?> interfaceClass) {
+         Snapshot p = cache.get(interfaceClass);
+         Map<String, Long> counts = new TreeMap<>();
+         if (p != null)
+             p.reads.forEach((key, reads) -> counts.put(key, reads.sum()));
+         return counts;
+    }
+
+    /**
+    * @return one line per counted key: interface, key, reads and reads per second since the class was generated,
+    *         the most read keys first
+    */
+    public static String dumpAccessCounts() {
+         return defaultManager().dumpAccessCountsIntern();
+    }
+
+    private String dumpAccessCountsIntern() {
+         List<Object[]> rows = new ArrayList<>();
+         long now = System.currentTimeMillis();
+         for (Entry<Class<?>, Snapshot> e : cache.entrySet()) {
+             double seconds = Math.max(1, now - e.getValue().created) / 1000.0;
+             for (Entry<String, LongAdder> r : e.getValue().reads.entrySet()) {
+                 long reads = r.getValue().sum();
+                 rows.add(new Object[] { e.getKey().getName(), r.getKey(), reads, reads / seconds });
+             }
+         }
+         rows.sort((a, b) -> Long.compare((Long) b[2], (Long) a[2]));
+         StringBuilder sb = new StringBuilder();
+         for (Object[] row : rows)
+             sb.append(String.format(Locale.ROOT, "%s %s reads=%d rate=%.1f/s%n", row));
+         return sb.toString();
+    }
+
+    /**
+    * The effective configuration of all loaded interfaces (not the tenants), built from the metadata
+    * stored at generation time, no accessor is called. Per interface: the generated class and its generation, the generation
+    * time and the file, then one line per key: key=value (source).
+    *
+    * @return the dump, interfaces and keys sorted by name
+    */
+    public static String dumpConfiguration() {
+         return defaultManager().dumpConfigurationIntern();
+    }
+
+    private String dumpConfigurationIntern() {
+         Map<String, Snapshot> snapshots = new TreeMap<>();
+         cache.forEach((c, p) -> snapshots.put(c.getName(), p));
+         StringBuilder sb = new StringBuilder();
+         for (Entry<String, Snapshot> e : snapshots.entrySet()) {
+             Snapshot p = e.getValue();
+             sb.append(e.getKey()).append(" class=").append(p.instance.getClass().getName()).append(" generation=").append(p.generation)
+               .append(" generated=").append(Instant.ofEpochMilli(p.created))
+               .append(" file=").append(p.file).append(System.lineSeparator());
+             for (Entry<String, String> v : new TreeMap<>(p.values).entrySet()) {
+                 sb.append("    ").append(v.getKey()).append('=').append(p.secrets.contains(v.getKey()) ? SECRET_MASK : v.getValue())
+                   .append(" (").append(p.sources.get(v.getKey())).append(')').append(System.lineSeparator());
+             }
+         }
+         return sb.toString();
+    }
+
+    /**
+    * Registers the ConfigManagerMBean as "de.codecoverage.config:type=ConfigManager" at the platform MBeanServer
+    * (with ",name=..." for a manager of create(Options)). Unregistered by shutdown().
+    */
+    public static void registerMBean() {
+         defaultManager().registerMBeanIntern();
+    }
+
+    private void registerMBeanIntern() {
+         checkOpen();
+         try {
+             MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+             if (server.isRegistered(objectName))
+                 return;
+             server.registerMBean(new StandardMBean(new ConfigManagerMBean() {
+                 @Override
+                 public String dumpConfiguration() {
+                     return dumpConfigurationIntern();
+                 }
+
+                 @Override
+                 public String dumpAccessCounts() {
+                     return dumpAccessCountsIntern();
+                 }
+
+                 @Override
+                 public String getReloadStatus() {
+                     return getReloadStatusIntern().toString();
+                 }
+
+                 @Override
+                 public String dumpHistory() {
+                     return dumpHistoryIntern();
+                 }
+
+                 @Override
+                 public void rollback(String file, long generation, boolean pin) {
+                     rollbackIntern(Paths.get(file), generation, pin);
+                 }
+             }, ConfigManagerMBean.class), objectName);
+         } catch (JMException e) {
+             throw new IllegalArgumentException("MBean registration failed", e);
+         }
+    }
+
+    /**
+    * Register a listener, notified with the old and new instance and the changed keys
+    * whenever a changed configuration has been published.
+    *
+    * @param interfaceClass the "config" interface
+    * @param listener called on the listener executor, in order per interface
+    */
+    public static <T> void addListener(Class<T> interfaceClass, ConfigListener<? super T> listener) {
+         defaultManager().addListenerIntern(interfaceClass, listener);
+    }
+
+    private <T> void addListenerIntern(Class<T> interfaceClass, ConfigListener<? super T> listener) {
+         checkOpen();
+         listenersByInterface.computeIfAbsent(interfaceClass, c -> new CopyOnWriteArrayList<>()).add(listener);
+    }
+
+    public static <T> void removeListener(Class<T> interfaceClass, ConfigListener<? super T> listener) {
+         defaultManager().removeListenerIntern(interfaceClass, listener);
+    }
+
+    private <T> void removeListenerIntern(Class<T> interfaceClass, ConfigListener<? super T> listener) {
+         List<ConfigListener<?>> listeners = listenersByInterface.get(interfaceClass);
+         if (listeners != null)
+             listeners.remove(listener);
+    }
+
+    /**
+    * @param executor runs the listeners, a slow listener only delays the listeners of its own interface.
+    *                 Default is a cached pool of daemon threads.
+    */
+    public static void setListenerExecutor(Executor executor) {
+         synchronized (DEFAULT_LOCK) {
+             DEFAULT_OPTIONS.listenerExecutor(executor);
+             defaultManager().setListenerExecutorIntern(executor);
+         }
+    }
+
+    private void setListenerExecutorIntern(Executor executor) {
+         listenerExecutor = executor;
+    }
+
+    private Executor listenerExecutor() {
+         Executor executor = listenerExecutor;
+         if (executor == null) {
+             synchronized (listenerQueues) {
+                 if (listenerExecutor == null) {
+                     listenerExecutor = ownListenerExecutor = Executors.newCachedThreadPool(r -> {
+                         Thread thr = new Thread(r, "ConfigManager listener");
+                         thr.setDaemon(true);
+                         return thr;
+                     });
+                 }
+                 executor = listenerExecutor;
+             }
+         }
+         return executor;
+    }
+
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    private void fireChanged(Class<?> interfaceClass, Snapshot oldValue, Snapshot newValue, Set<String> keys) {
+         List<ConfigListener<?>> listeners = listenersByInterface.get(interfaceClass);
+         if (listeners == null || listeners.isEmpty())
+             return;
+         Set<String> changedKeys = Collections.unmodifiableSet(keys);
+         for (ConfigListener listener : listeners) {
+             try {
+                 listenerQueues.computeIfAbsent(interfaceClass, c -> new SerialExecutor())
+                     .execute(() -> {
+                         try {
+                             listener.onChange(oldValue.instance, newValue.instance, changedKeys);
+                         } catch (Exception e) {
+                             LOG.log(Level.SEVERE, "Listener of " + interfaceClass.getName() + " failed", e);
+                         }
+                     });
+             } catch (RejectedExecutionException e) {
+                 LOG.log(Level.SEVERE, "Listener of " + interfaceClass.getName() + " rejected", e);
+             }
+         }
+    }
+
+    // The first get() creates the instance under the reloadLock: racing threads don't generate
+    // duplicates and a reload can't run between reading the file and publishing (stale instance).
+    // Deferred, the defaults are published without the lock, the loading thread serializes with the reloads
+    @SuppressWarnings("unchecked")
+    private <T> T getIntern(Class<T> interfaceClass) {
+         Snapshot p = cache.get(interfaceClass);
+         if (p == null)
+             checkOpen();
+         if (p == null && deferLoading) {
+             Snapshot defaults = createConcreteObject(interfaceClass, null, null, null, true, null);
+             CountDownLatch[] done = new CountDownLatch[1];
+             // atomic per interface: only the thread publishing the defaults starts the loading, awaitReady() sees it before get() returns
+             pending.computeIfAbsent(interfaceClass, c -> cache.putIfAbsent(c, defaults) == null ? done[0] = new CountDownLatch(1) : null);
+             if (done[0] != null)
+                 loadDeferred(interfaceClass, defaults, done[0]);
+             p = cache.get(interfaceClass);
+         }
+         if (p == null) {
+             synchronized (reloadLock) {
+                 checkOpen();
+                 p = cache.get(interfaceClass);
+                 if (p == null) {
+                     p = createConcreteObject(interfaceClass, null, null, null, false, fileLoaders);
+                     publish(interfaceClass, p);
+                 }
+             }
+         }
+         return (T) p.instance;
+    }
+
+    // loads the file of an interface serving its defaults, published like a reload of the file
+    private void loadDeferred(Class<?> interfaceClass, Snapshot defaults, CountDownLatch done) {
+         String providerString = resolveProviderString(interfaceClass.getAnnotation(Configurable.class).filePath());
+         Path file = providerString != null ? Paths.get(providerString).toAbsolutePath() : null;
+         Thread thr = new Thread(() -> {
+             try {
+                 synchronized (reloadLock) {
+                     if (!closeFileSystemThreadLoop) {
+                         // the defaults are the oldest generation, a reload may have published a newer one
+                         ArrayDeque<Snapshot> history = histories.computeIfAbsent(interfaceClass, c -> new ArrayDeque<>());
+                         if (history.size() < historySize)
+                             history.addLast(defaults);
+                         reload(Collections.singletonList(interfaceClass), file);
+                     }
+                 }
+             } catch (RuntimeException e) {
+                 // logged and counted by reload(), the defaults stay in use
+             } finally {
+                 pending.remove(interfaceClass, done);
+                 done.countDown();
+             }
+         }, "ConfigManager deferred loading of " + interfaceClass.getName());
+         thr.setDaemon(true);
+         thr.start();
+    }
+ 
+    private <T> Snapshot createConcreteObject(Class<T> interfaceClass, String tenantId, Snapshot in,
+                                                                                Map<String, WeakReference<Snapshot>> shared) {
+         return createConcreteObject(interfaceClass, tenantId, in, shared, false, null);
+    }
+
+    // defaultsOnly: the file isn't read (deferred loading), the pre-built class is used if there is one
+    // loaders: (file, interface loader) -> the loader shared by the interfaces of the file, null for an own loader
+    private <T> Snapshot createConcreteObject(Class<T> interfaceClass, String tenantId, Snapshot in,
+                                                     Map<String, WeakReference<Snapshot>> shared, boolean defaultsOnly,
+                                                     Map<Pair<Path, ClassLoader>, ByteArrayLoader> loaders)
+    {
+         if (!interfaceClass.isInterface()) {
+             throw new IllegalArgumentException(interfaceClass + " not an interface");
+         }
+ 
+         if (!interfaceClass.isAnnotationPresent(Configurable.class)) {
+             throw new IllegalArgumentException("Interface:" + interfaceClass + " not annotated with Configurable");
+         }
+ 
+         boolean isFineLogging = LOG.isLoggable(Level.FINE);
          String providerString = "";
  
          Annotation annotation = interfaceClass.getAnnotation(Configurable.class);
          Configurable cc = (Configurable) annotation;
-         providerString = cc.filePath();
-         HashMap<Method, Object> map = new HashMap<>();
-         Properties properties = loadPropertyFile(providerString, interfaceClass);
+         providerString = tenantId == null ? cc.filePath() : tenantFilePath(interfaceClass, tenantId);
+         Properties properties = defaultsOnly ? new Properties() : loadPropertyFile(providerString, interfaceClass);
          StringBuilder sb = new StringBuilder();
-        
+         Map<String, String> values = new HashMap<>();
+
+         // raw values (file overrides default) are the source for ${...} references
+         Map<String, String> rawValues = new HashMap<>(getDefaults(interfaceClass));
+         for (String name : properties.stringPropertyNames()) {
+             rawValues.put(name, properties.getProperty(name));
+         }
+         Set<String> secrets = new HashSet<>();
+         HashMap<Method, Object> map = resolveValues(interfaceClass, "", rawValues, new HashMap<>(), sb, values, secrets);
+ 
+         // We donate cpu time and memory!
+         // If the parameters didn't change after reload, we don't want to create a new
+         // class. We also don't want to create a new class/instance and destroy all the work yet done
+         // by the jit
+         boolean counting = countAccess && CAN_DEFINE_CLASSES;
+         if (counting)
+             sb.append("#countAccess"); // switching the mode regenerates the class on the next reload
+         String storeString = sb.toString();
+         if (in != null && storeString.equals(in.fingerprint)) {
+             if (isFineLogging)
+                 LOG.fine("No configuration changes detected: " + providerString);
+             return in;
+         } else {
+             WeakReference<Snapshot> ref = shared != null ? shared.get(storeString) : null;
+             Snapshot same = ref != null ? ref.get() : null;
+             if (same != null)
+                 return same;
+             LOG.warning("!Configuration changes detected! : " + providerString);
+         }
+ 
+         Object obj = prebuiltInstances.get(interfaceClass);
+         if (obj != null && (counting || !isDefaultOnly(interfaceClass, properties))) {
+             if (CAN_DEFINE_CLASSES) {
+                 obj = null;
+             } else {
+                 LOG.severe("Class definition not supported, file values are ignored, using the defaults of: " + interfaceClass.getName());
+             }
+         }
+         Map<String, LongAdder> reads = Collections.emptyMap();
+         if (obj == null && tenantId != null) try {
+			Template template = getTemplate(interfaceClass, counting);
+			obj = template.newInstance(map);
+			reads = template.reads;
+         } catch (ReflectiveOperationException t) {
+             throw new IllegalArgumentException(t);
+         }
+         if (obj == null) try {
+			Map<String, byte[]> classes = new HashMap<>();
+			Map<String, String> counters = counting ? new HashMap<>() : null;
+			String className = generateClasses(interfaceClass, "", map, classes, counters);
+			// the parent is the loader of the interface: its classes are visible (and unloadable) in an application server
+			String file = resolveProviderString(providerString);
+			ByteArrayLoader loader = loaders == null || file == null ? new ByteArrayLoader(interfaceClass.getClassLoader(), new HashMap<>())
+					: loaders.computeIfAbsent(Pair.create(Paths.get(file).toAbsolutePath(), interfaceClass.getClassLoader()), f -> new ByteArrayLoader(f.p2, new ConcurrentHashMap<>()));
+			obj = ConfigManager.defineInstance(className, classes, loader);
+			if (counting)
+				reads = getCounters(obj.getClass().getClassLoader(), counters);
+         } catch (Exception t) {
+             LOG.log(Level.SEVERE, "Handcrafted class generation failed!");
+             throw new IllegalArgumentException(t);
+         }
+ 
+         Snapshot result = new Snapshot(obj, storeString, values, changedKeys(in, values), reads,
+                                        getSources(values.keySet(), properties, resolveProviderString(providerString)), resolveProviderString(providerString),
+                                        secrets.isEmpty() ? Collections.emptySet() : secrets);
+         if (shared != null)
+             shared.put(storeString, new WeakReference<>(result));
+         return result;
+    }   
+
+    private Map<String, ValueSource> getSources(Set<String> keys, Properties properties, String file) {
+         Map<String, String> updated = file != null ? updatedValues.get(Paths.get(file).toAbsolutePath()) : null;
+         Map<String, ValueSource> sources = new HashMap<>();
+         for (String key : keys) {
+             String value = properties.getProperty(key);
+             if (value == null)
+                 sources.put(key, ValueSource.DEFAULT);
+             else
+                 sources.put(key, updated != null && value.equals(updated.get(key)) ? ValueSource.UPDATE : ValueSource.FILE);
+         }
+         return sources;
+    }
+
+    private static Set<String> changedKeys(Snapshot in, Map<String, String> values) {
+         if (in == null)
+             return Collections.emptySet();
+         Set<String> changed = new HashSet<>();
+         for (Entry<String, String> e : values.entrySet()) {
+             if (!e.getValue().equals(in.values.get(e.getKey())))
+                 changed.add(e.getKey());
+         }
+         for (String key : in.values.keySet()) {
+             if (!values.containsKey(key))
+                 changed.add(key);
+         }
+         return changed;
+    }
+
+    // true if the file doesn't override a default value, then the pre-built instance can be used
+    private boolean isDefaultOnly(Class<?> interfaceClass, Properties properties) {
+         for (Entry<String, String> e : getDefaults(interfaceClass).entrySet()) {
+             String value = properties.getProperty(e.getKey());
+             if (value != null && !value.equals(e.getValue()) || getDecoder(e.getValue()) != null)
+                 return false; // the pre-built class has the encoded default
+         }
+         return true;
+    }
+
+    private static Map<Class<?>, Object> loadPrebuilt(ClassLoader classLoader) {
+         Map<Class<?>, Object> prebuilt = new HashMap<>();
+         try {
+             for (Prebuilt p : ServiceLoader.load(Prebuilt.class, classLoader)) {
+                 prebuilt.putAll(p.defaults());
+             }
+         } catch (ServiceConfigurationError e) {
+             LOG.log(Level.WARNING, "Loading pre-built config classes failed", e);
+         }
+         return prebuilt;
+    }
+
+    // defaults of the interface and its nested groups, keys are prefixed with the group prefix
+    private static void collectDefaults(Class<?> interfaceClass, String prefix, Map<String, String> rawValues, Deque<Class<?>> groups) {
+         if (groups.contains(interfaceClass))
+             throw new IllegalArgumentException("Interface: " + interfaceClass + " is nested into itself");
+         groups.push(interfaceClass);
+         for (Method method : interfaceClass.getDeclaredMethods()) {
+             ConfigurationValue ccPath = method.getAnnotation(ConfigurationValue.class);
+             ConfigurationGroup group = method.getAnnotation(ConfigurationGroup.class);
+             RolloutFlag flag = method.getAnnotation(RolloutFlag.class);
+             if (ccPath != null) {
+                 rawValues.putIfAbsent(prefix + ccPath.key(), ccPath.defaultValue());
+             } else if (flag != null) {
+                 rawValues.putIfAbsent(prefix + flag.key(), Integer.toString(flag.defaultPercent()));
+             } else if (group != null) {
+                 if (!method.getReturnType().isInterface())
+                     throw new IllegalArgumentException("Method: " + method + " wrong return type, group must be an interface");
+                 collectDefaults(method.getReturnType(), prefix + group.prefix(), rawValues, groups);
+             }
+         }
+         groups.pop();
+    }
+
+    // method -> converted value, or for a nested group method -> the map of the nested interface
+    private HashMap<Method, Object> resolveValues(Class<?> interfaceClass, String prefix, Map<String, String> rawValues, Map<String, String> resolvedValues,
+                                                         StringBuilder sb, Map<String, String> values, Set<String> secrets) {
+         HashMap<Method, Object> map = new HashMap<>();
          for (Method method : interfaceClass.getDeclaredMethods()) {
              if (method.isAnnotationPresent(ConfigurationValue.class)) {
                  Annotation annotationPath = method.getAnnotation(ConfigurationValue.class);
                  ConfigurationValue ccPath = (ConfigurationValue) annotationPath;
-                 String path = ccPath.key();
-                 String value = ccPath.defaultValue();
-                 Object overrideDefault = properties.get(path);
- 
-                 if (overrideDefault != null)
-                     value = overrideDefault.toString();
- 
-                 sb.append(path).append('=').append(value);
+                 String path = prefix + ccPath.key();
+                 String value = interpolate(path, rawValues, resolvedValues, new ArrayDeque<>());
+                 String shown = value;
+                 ValueDecoder decoder = getDecoder(value);
+                 if (decoder != null) {
+                     // only a keyed hash of the plaintext is kept for change detection
+                     value = decode(path, value, decoder);
+                     shown = SECRET_MASK;
+                     secrets.add(path);
+                 }
+                 String stored = decoder != null ? "hmac:" + hmac(value) : value;
+
+                 sb.append(path).append('=').append(stored);
+                 values.put(path, stored);
                  Object v = null;
 				 try {
 					 v = convert(value, method.getReturnType());
 				 } catch (Exception e) {
-						throw new IllegalArgumentException("convert() failed: " + path + "=" + value + " returnType:" + method.getReturnType(), e);
+						throw new IllegalArgumentException("convert() failed: " + path + "=" + shown + " returnType:" + method.getReturnType(), decoder != null ? null : e);
 				 }
+                 validate(path, value, shown, v, ccPath);
                  if (method.getParameterCount() != 0)
                 	 throw new IllegalArgumentException("Method: " + method + " has parameters");
                  
                  map.put(method, v);
+             } else if (method.isAnnotationPresent(RolloutFlag.class)) {
+                 Class<?>[] parameters = method.getParameterTypes();
+                 if (method.getReturnType() != boolean.class || parameters.length != 1 || (parameters[0] != long.class && parameters[0] != String.class))
+                     throw new IllegalArgumentException("Method: " + method + " wrong signature, allowed are boolean (long) and boolean (String)");
+                 String path = prefix + method.getAnnotation(RolloutFlag.class).key();
+                 String value = interpolate(path, rawValues, resolvedValues, new ArrayDeque<>());
+                 sb.append(path).append('=').append(value);
+                 values.put(path, value);
+                 int percent;
+                 try {
+                     percent = Integer.parseInt(value.trim());
+                 } catch (NumberFormatException e) {
+                     throw new IllegalArgumentException("convert() failed: " + path + "=" + value + " returnType:int", e);
+                 }
+                 if (percent < 0 || percent > 100)
+                     throw new IllegalArgumentException("validation failed: " + path + "=" + value + " not in [0, 100]");
+                 map.put(method, percent);
+             } else if (method.isAnnotationPresent(ConfigurationGroup.class)) {
+                 if (method.getParameterCount() != 0)
+                	 throw new IllegalArgumentException("Method: " + method + " has parameters");
+                 String groupPrefix = prefix + method.getAnnotation(ConfigurationGroup.class).prefix();
+                 map.put(method, resolveValues(method.getReturnType(), groupPrefix, rawValues, resolvedValues, sb, values, secrets));
              } else {
-            	 String msg = "Method: " + method + " has no annotation 'ConfigurationPath'";
+            	 String msg = "Method: " + method + " has no annotation 'ConfigurationValue', 'ConfigurationGroup' or 'RolloutFlag'";
                  LOG.severe(msg);
                  throw new IllegalArgumentException(msg);
              }
          }
- 
-         // We donate cpu time and memory!
-         // If the parameters didn't change after reload, we don't want to create a new
-         // class. We also don't want to create a new class/instance and destroy all the work yet done
-         // by the jit
-         String storeString = sb.toString();
-         if (in != null && storeString.equals(in.p2.p1)) {
-             if (isFineLogging)
-                 LOG.fine("No configuration changes detected: " + providerString);
-             return in;
-         } else {
-             LOG.warning("!Configuration changes detected! : " + providerString);
+         return map;
+    }
+
+    // the constraints of @ConfigurationValue, shown is the value in the messages (masked for secrets)
+    private static void validate(String path, String value, String shown, Object v, ConfigurationValue ccPath) {
+         if (ccPath.nonEmpty() && value.trim().isEmpty())
+             throw new IllegalArgumentException("validation failed: " + path + " is empty");
+         if (!ccPath.regex().isEmpty() && !value.matches(ccPath.regex()))
+             throw new IllegalArgumentException("validation failed: " + path + "=" + shown + " doesn't match " + ccPath.regex());
+         double d = v instanceof Number ? ((Number) v).doubleValue() : v instanceof String ? ((String) v).length() : Double.NaN;
+         if (d < ccPath.min() || d > ccPath.max()) // NaN (boolean) is never out of range
+             throw new IllegalArgumentException("validation failed: " + path + "=" + shown + " not in [" + ccPath.min() + ", " + ccPath.max() + "]");
+    }
+
+    // the decoder of a value NAME(...), null if it isn't encoded
+    private ValueDecoder getDecoder(String value) {
+         int open = value.indexOf('(');
+         if (open <= 0 || !value.endsWith(")"))
+             return null;
+         return decoders.get(value.substring(0, open));
+    }
+
+    private static String decode(String path, String value, ValueDecoder decoder) {
+         try {
+             String decoded = decoder.decode(value.substring(value.indexOf('(') + 1, value.length() - 1));
+             if (decoded == null)
+                 throw new IllegalArgumentException("decoder returned null");
+             return decoded;
+         } catch (RuntimeException e) {
+             // the exception message may contain the plaintext, neither it nor the cause is passed on
+             throw new IllegalArgumentException("decoding failed: " + path);
          }
- 
-         // getIntern gets the key, or if removing was faster, we repeat this 
-         // and save the new value only if it hasn't already been inserted by
-         // the other... Should be safe regarding null pointer
-         if (forceRemove) {
-             CACHE.remove(interfaceClass);
-             if (isFineLogging)
-                 LOG.fine(() -> "removed interface '" + interfaceClass + "' from cache");
+    }
+
+    private static String sha256(String value) {
+         try {
+             return hex(MessageDigest.getInstance("SHA-256").digest(value.getBytes(StandardCharsets.UTF_8)));
+         } catch (GeneralSecurityException e) {
+             throw new IllegalArgumentException(e);
+         }
+    }
+
+    private String hmac(String value) {
+         try {
+             Mac mac = Mac.getInstance("HmacSHA256");
+             mac.init(secretsKey);
+             return hex(mac.doFinal(value.getBytes(StandardCharsets.UTF_8)));
+         } catch (GeneralSecurityException e) {
+             throw new IllegalArgumentException(e);
+         }
+    }
+
+    private static byte[] randomBytes(int length) {
+         byte[] bytes = new byte[length];
+         new SecureRandom().nextBytes(bytes);
+         return bytes;
+    }
+
+    private static String hex(byte[] bytes) {
+         StringBuilder sb = new StringBuilder(bytes.length * 2);
+         for (byte b : bytes)
+             sb.append(String.format("%02x", b));
+         return sb.toString();
+    }
+
+    // generates the classes of the interface and its nested groups, returns the name of the top class.
+    // With counters (access counting) the accessors count their calls, counters gets key -> class.method
+    @SuppressWarnings("unchecked")
+    private static String generateClasses(Class<?> interfaceClass, String prefix, HashMap<Method, Object> map, Map<String, byte[]> classes,
+                                          Map<String, String> counters) {
+         Map<String, String> methods = new HashMap<>();
+         Map<String, String> keys = new HashMap<>();
+         for (Entry<Method, Object> entry : map.entrySet()) {
+             Method m = entry.getKey();
+             Object value = entry.getValue();
+             String methodName = m.getName();
+             if (value instanceof HashMap) {
+                 String groupPrefix = prefix + m.getAnnotation(ConfigurationGroup.class).prefix();
+                 String groupClassName = generateClasses(m.getReturnType(), groupPrefix, (HashMap<Method, Object>) value, classes, counters);
+                 methods.put(methodName, "()L" + m.getReturnType().getName().replace('.', '/') + ";-" + groupClassName);
+             } else if (m.isAnnotationPresent(RolloutFlag.class)) {
+                 String methodSignature = m.getParameterTypes()[0] == long.class ? "(J)Z" : "(Ljava/lang/String;)Z";
+                 methods.put(methodName, methodSignature + "-" + value);
+                 keys.put(prefix + m.getAnnotation(RolloutFlag.class).key(), methodName);
+             } else {
+                 String methodSignature = getReturnSignature(m.getReturnType());
+                 methods.put(methodName, methodSignature + "-" + value);
+                 keys.put(prefix + m.getAnnotation(ConfigurationValue.class).key(), methodName);
+             }
+         }
+         String iName = interfaceClass.getName().replace('.','/');
+         String className = calcClassName(iName);
+         classes.put(className, generateClass(className, iName, methods, counters != null));
+         if (counters != null)
+             keys.forEach((key, methodName) -> counters.put(key, className + "." + methodName));
+         return className;
+    }
+
+    // the class of the tenants, generated on the first tenant load of the interface
+    private Template getTemplate(Class<?> interfaceClass, boolean counting) {
+         return templates.computeIfAbsent(Pair.create(interfaceClass, counting), k -> {
+             try {
+                 Map<String, byte[]> classes = new HashMap<>();
+                 Map<String, String> counters = counting ? new HashMap<>() : null;
+                 Template template = generateTemplate(interfaceClass, "", classes, counters);
+                 ByteArrayLoader loader = new ByteArrayLoader(interfaceClass.getClassLoader(), new HashMap<>()).add(classes);
+                 template.define(loader);
+                 if (counting)
+                     template.reads = getCounters(loader, counters);
+                 return template;
+             } catch (ReflectiveOperationException e) {
+                 LOG.log(Level.SEVERE, "Handcrafted class generation failed!");
+                 throw new IllegalArgumentException(e);
+             }
+         });
+    }
+
+    // like generateClasses(), the methods return the fields of the instance
+    private static Template generateTemplate(Class<?> interfaceClass, String prefix, Map<String, byte[]> classes, Map<String, String> counters) {
+         Method[] methods = interfaceClass.getDeclaredMethods();
+         Template[] groups = new Template[methods.length];
+         List<String[]> signatures = new ArrayList<>(methods.length);
+         Map<String, String> keys = new HashMap<>();
+         for (int i = 0; i < methods.length; i++) {
+             Method m = methods[i];
+             if (m.isAnnotationPresent(ConfigurationGroup.class)) {
+                 groups[i] = generateTemplate(m.getReturnType(), prefix + m.getAnnotation(ConfigurationGroup.class).prefix(), classes, counters);
+                 signatures.add(new String[] { m.getName(), "()L" + m.getReturnType().getName().replace('.', '/') + ";" });
+             } else if (m.isAnnotationPresent(RolloutFlag.class)) {
+                 signatures.add(new String[] { m.getName(), m.getParameterTypes()[0] == long.class ? "(J)Z" : "(Ljava/lang/String;)Z" });
+                 keys.put(prefix + m.getAnnotation(RolloutFlag.class).key(), m.getName());
+             } else {
+                 signatures.add(new String[] { m.getName(), getReturnSignature(m.getReturnType()) });
+                 keys.put(prefix + m.getAnnotation(ConfigurationValue.class).key(), m.getName());
+             }
          }
- 
-         Object obj = null;
-         try {
-        	Map<String, String> methods = new HashMap<>();
-			for (Entry<Method, Object> entry : map.entrySet()) {
-				Method m = entry.getKey();
-				Object value = entry.getValue();
-				String methodName = m.getName();
-				String methodSignature = getReturnSignature(m.getReturnType());
-				methods.put(methodName, methodSignature + "-" + value);
-			}
-			String iName = interfaceClass.getName().replace('.','/');
-			obj = ConfigManager.getInstance(iName, methods);
-         } catch (Exception t) {
-             LOG.log(Level.SEVERE, "Handcrafted class generation failed!");
-             throw new IllegalArgumentException(t);
+         String iName = interfaceClass.getName().replace('.','/');
+         String className = calcClassName(iName);
+         classes.put(className, generateTemplateClass(className, iName, signatures, counters != null));
+         if (counters != null)
+             keys.forEach((key, methodName) -> counters.put(key, className + "." + methodName));
+         return new Template(className, methods, groups);
+    }
+
+    // the LongAdder of each key, read once from the static fields of the generated classes
+    private static Map<String, LongAdder> getCounters(ClassLoader loader, Map<String, String> counters) throws ReflectiveOperationException {
+         Map<String, LongAdder> reads = new HashMap<>();
+         for (Entry<String, String> e : counters.entrySet()) {
+             int dot = e.getValue().lastIndexOf('.');
+             Class<?> cls = loader.loadClass(e.getValue().substring(0, dot).replace('/', '.'));
+             Field field = cls.getDeclaredField(e.getValue().substring(dot + 1) + ClassGenerator.COUNTER_SUFFIX);
+             field.setAccessible(true);
+             reads.put(e.getKey(), (LongAdder) field.get(null));
          }
- 
-         return Pair.create(obj, Pair.create(storeString, Boolean.TRUE));
-    }   
+         return reads;
+    }
 
-    private static Properties loadPropertyFile(String providerString, Class<?> interfaceClass) {
-         assert providerString != null;
-         assert interfaceClass != null;
+    // "@key@" is replaced by the value of the system property "key", null if not set
+    private static String resolveProviderString(String providerString) {
          if (providerString.startsWith("@") && providerString.endsWith("@")) {
              providerString = providerString.substring(1, providerString.length() - 1);
              providerString = System.getProperty(providerString);
-             if (providerString == null) {
-                 LOG.log(Level.SEVERE, "System property not found for the given key.");
-                 return new Properties();
-             }
+         }
+         return providerString;
+    }
+
+    private Properties loadPropertyFile(String providerString, Class<?> interfaceClass) {
+         assert providerString != null;
+         assert interfaceClass != null;
+         providerString = resolveProviderString(providerString);
+         if (providerString == null) {
+             LOG.log(Level.SEVERE, "System property not found for the given key.");
+             return new Properties();
          }
  
          Path path = Paths.get(providerString);
@@ -345,18 +2145,24 @@ public final class ConfigManager {
          }
  
          try (BufferedReader br = Files.newBufferedReader(path.toAbsolutePath())) {
-             prop.load(br);
              Path directory = path.toAbsolutePath().getParent();
  
-             synchronized (DIRS2WATCH) {
-                 ConcurrentHashMap<Path, Boolean> files = DIRS2WATCH.get(directory);
+             synchronized (dirs2Watch) {
+                 ConcurrentHashMap<Path, Boolean> files = dirs2Watch.get(directory);
                  if (files == null) {
                      files = new ConcurrentHashMap<>(8);
-                     DIRS2WATCH.put(directory, files);
-                     directory.register(watchService, java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY);
+                     dirs2Watch.put(directory, files);
+                     // ENTRY_CREATE: the file is replaced by a rename (update() or other atomic writers)
+                     watchKeys.put(directory, directory.register(watchService, java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY, java.nio.file.StandardWatchEventKinds.ENTRY_CREATE));
                  }
                  files.put(path.getFileName(), Boolean.FALSE);
              }
+             // watched before parsing, a fixed syntax error is picked up
+             Map<String, String> defaults = getDefaults(interfaceClass);
+             parse(br, path, prop, defaults.keySet());
+             // a ${...} may refer to a key outside the interface, then all keys are read
+             if (!isPropertiesFormat(path) && (hasReference(prop.values()) || hasReference(defaults.values())))
+                 prop = parseFile(path, null);
          } catch (IOException e) {
              LOG.log(Level.SEVERE, "loadPropertyFile: for config interface " + interfaceClass.getName() + " failed! Path=" + path.toAbsolutePath(), e);
          }
@@ -365,6 +2171,95 @@ public final class ConfigManager {
     }
  
  
+    // the format by file extension: .json, .yaml/.yml or properties
+    private static void parse(BufferedReader br, Path path, Properties prop, Set<String> keys) throws IOException {
+         String name = path.getFileName().toString().toLowerCase(Locale.ROOT);
+         try {
+             if (name.endsWith(".json"))
+                 JsonParser.parse(br, prop, keys);
+             else if (name.endsWith(".yaml") || name.endsWith(".yml"))
+                 YamlParser.parse(br, prop, keys);
+             else
+                 prop.load(br);
+         } catch (IllegalArgumentException e) {
+             throw new IllegalArgumentException(path.toAbsolutePath() + ": " + e.getMessage(), e);
+         }
+    }
+
+    private static boolean hasReference(Collection<?> values) {
+         for (Object value : values) {
+             if (value != null && value.toString().contains("${"))
+                 return true;
+         }
+         return false;
+    }
+
+    private static boolean isPropertiesFormat(Path path) {
+         String name = path.getFileName().toString().toLowerCase(Locale.ROOT);
+         return !name.endsWith(".json") && !name.endsWith(".yaml") && !name.endsWith(".yml");
+    }
+
+    // package-private for the format benchmark of the TestDriver, keys null: all
+    static Properties parseFile(Path path, Set<String> keys) throws IOException {
+         Properties prop = new Properties();
+         try (BufferedReader br = Files.newBufferedReader(path)) {
+             parse(br, path, prop, keys);
+         }
+         return prop;
+    }
+
+    /**
+     * Resolves ${other.key} and ${env:VAR} references of the given key. Every key is resolved
+     * only once per reload, the result is baked into the generated class. $${ is a literal ${.
+     *
+     * @param key the key to resolve
+     * @param rawValues the unresolved values (file overrides default)
+     * @param resolvedValues already resolved values of this reload
+     * @param resolving the keys currently being resolved, used for cycle detection
+     * @return the resolved value or null if the key is unknown
+     */
+    private static String interpolate(String key, Map<String, String> rawValues, Map<String, String> resolvedValues, Deque<String> resolving) {
+         String resolved = resolvedValues.get(key);
+         if (resolved != null)
+             return resolved;
+         String value = rawValues.get(key);
+         if (value == null || value.indexOf("${") < 0)
+             return value;
+         if (resolving.contains(key)) {
+             List<String> chain = new ArrayList<>(resolving);
+             Collections.reverse(chain);
+             throw new IllegalArgumentException("Cyclic reference: " + String.join(" -> ", chain) + " -> " + key);
+         }
+
+         resolving.push(key);
+         StringBuilder sb = new StringBuilder(value.length() + 32);
+         int pos = 0;
+         int start;
+         while ((start = value.indexOf("${", pos)) >= 0) {
+             if (start > 0 && value.charAt(start - 1) == '$') { // escaped
+                 sb.append(value, pos, start - 1).append("${");
+                 pos = start + 2;
+                 continue;
+             }
+             int end = value.indexOf('}', start + 2);
+             if (end < 0)
+                 throw new IllegalArgumentException("Unterminated '${' in value of key: " + key);
+             String ref = value.substring(start + 2, end);
+             String refValue = ref.startsWith("env:") ? System.getenv(ref.substring(4))
+                                                      : interpolate(ref, rawValues, resolvedValues, resolving);
+             if (refValue == null)
+                 throw new IllegalArgumentException("Unresolvable reference '${" + ref + "}' in value of key: " + key);
+             sb.append(value, pos, start).append(refValue);
+             pos = end + 1;
+         }
+         sb.append(value, pos, value.length());
+         resolving.pop();
+
+         resolved = sb.toString();
+         resolvedValues.put(key, resolved);
+         return resolved;
+    }
+
 	private static Object convert(String value, Class<?> returnType) {
 		Function<String, ?> converter = CONVERTERS.get(returnType);
 		if (converter != null) {
@@ -374,23 +2269,564 @@ public final class ConfigManager {
 		}
 	}
  
+    /**
+    * Closes the default manager of the static methods, the next call creates a new one. It keeps the settings
+    * of the static setters (setMaxTenants(), setHistorySize(), setListenerExecutor(), setDeferredLoading(),
+    * setAccessCounting()); instances, listeners and decoders are dropped.
+    */
     public static void shutdown() {
-         CACHE.clear();
-         DIRS2WATCH.clear();
-         try {
+         ConfigManager manager;
+         synchronized (DEFAULT_LOCK) {
+             manager = defaultManager;
+             defaultManager = null;
+         }
+         if (manager != null)
+             manager.shutdownIntern();
+    }
+
+    // Stops the watcher and the own listener threads and drops all instances: nothing of this manager
+    // keeps the generated classes (or the class loader of the interfaces) alive
+    // a closed manager has no watcher, it would serve stale instances silently
+    private void checkOpen() {
+         if (closeFileSystemThreadLoop)
+             throw new IllegalStateException("ConfigManager is closed: " + objectName);
+    }
+
+    private void shutdownIntern() {
+         // waits for a running reload, the watcher doesn't start another one
+         synchronized (reloadLock) {
              closeFileSystemThreadLoop = true;
-             watchService.close();
+             cache.clear();
+             selfWrites.clear();
+             updatedValues.clear();
+             pending.clear();
+             histories.clear();
+             pins.clear();
+             tenantsByInterface.clear();
+             listenersByInterface.clear();
+             listenerQueues.clear();
+             synchronized (dirs2Watch) {
+                 dirs2Watch.clear();
+                 watchKeys.clear();
+             }
+             fileLoaders.clear();
+             templates.clear();
+         }
+         try {
+             if (ManagementFactory.getPlatformMBeanServer().isRegistered(objectName))
+                 ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+         } catch (JMException e) {
+             LOG.log(Level.WARNING, "MBean unregistration failed", e);
+         }
+         try {
+             if (watchService != null)
+                 watchService.close();
          } catch (IOException e) {
              e.printStackTrace();
          }
+         if (watcherThread != Thread.currentThread()) {
+             watcherThread.interrupt();
+             try {
+                 watcherThread.join(TimeUnit.SECONDS.toMillis(5));
+             } catch (InterruptedException e) {
+                 Thread.currentThread().interrupt();
+             }
+         }
+         ExecutorService executor;
+         synchronized (listenerQueues) {
+             executor = ownListenerExecutor;
+             ownListenerExecutor = null;
+         }
+         if (executor != null)
+             executor.shutdown(); // the queued listeners still run
     }
     
+    // Streaming parsers for .json and .yaml/.yml files. Nested keys are flattened to the dotted keys of
+    // @ConfigurationValue: {"db": {"url": "x"}} is db.url=x, list elements are key.0, key.1, ...
+    // Values are taken as text, null values are absent. Only the wanted keys are extracted (null: all),
+    // loadPropertyFile() reads all keys when a value contains a ${...} reference.
+    private static final class JsonParser {
+    	private final Reader in;
+    	private final Properties target;
+    	private final Set<String> keys;
+    	private final Set<String> prefixes; // the parents of the wanted keys, other objects are skipped
+    	private final StringBuilder sb = new StringBuilder();
+    	private final char[] buf = new char[8192]; // Reader.read() per char is synchronized in BufferedReader
+    	private int pos;
+    	private int len;
+    	private int c;
+    	private int line = 1;
+
+    	private JsonParser(Reader in, Properties target, Set<String> keys) {
+    		this.in = in;
+    		this.target = target;
+    		this.keys = keys;
+    		this.prefixes = keys == null ? null : prefixes(keys);
+    	}
+
+    	private static void parse(Reader in, Properties target, Set<String> keys) throws IOException {
+    		JsonParser p = new JsonParser(in, target, keys);
+    		p.next();
+    		p.skipWhitespace();
+    		if (p.c != '{')
+    			throw p.error("expected an object");
+    		p.value("");
+    		p.skipWhitespace();
+    		if (p.c != -1)
+    			throw p.error("unexpected content after the object");
+    	}
+
+    	// path is null when the value isn't wanted
+    	private void value(String path) throws IOException {
+    		if (c == '{') {
+    			next();
+    			skipWhitespace();
+    			if (c == '}') {
+    				next();
+    				return;
+    			}
+    			while (true) {
+    				skipWhitespace();
+    				if (c != '"')
+    					throw error("expected a key");
+    				String name = path == null ? skipString() : string();
+    				skipWhitespace();
+    				expect(':');
+    				skipWhitespace();
+    				value(path == null ? null : child(path, name));
+    				skipWhitespace();
+    				if (c == ',') {
+    					next();
+    				} else {
+    					expect('}');
+    					return;
+    				}
+    			}
+    		} else if (c == '[') {
+    			next();
+    			skipWhitespace();
+    			if (c == ']') {
+    				next();
+    				return;
+    			}
+    			for (int i = 0; ; i++) {
+    				skipWhitespace();
+    				value(path == null ? null : child(path, Integer.toString(i)));
+    				skipWhitespace();
+    				if (c == ',') {
+    					next();
+    				} else {
+    					expect(']');
+    					return;
+    				}
+    			}
+    		} else if (c == '"') {
+    			if (path != null && (keys == null || keys.contains(path)))
+    				target.setProperty(path, string());
+    			else
+    				skipString();
+    		} else {
+    			sb.setLength(0);
+    			while (c != -1 && c != ',' && c != '}' && c != ']' && !Character.isWhitespace(c)) {
+    				sb.append((char) c);
+    				next();
+    			}
+    			String literal = sb.toString();
+    			if (!literal.equals("true") && !literal.equals("false") && !literal.equals("null")
+    					&& !literal.matches("-?(0|[1-9][0-9]*)(\\.[0-9]+)?([eE][+-]?[0-9]+)?"))
+    				throw error("invalid value '" + literal + "'");
+    			if (path != null && !literal.equals("null") && (keys == null || keys.contains(path)))
+    				target.setProperty(path, literal);
+    		}
+    	}
+
+    	// the child path, null if neither it nor one of its children is wanted
+    	private String child(String path, String name) {
+    		String child = path.isEmpty() ? name : path + '.' + name;
+    		return keys == null || keys.contains(child) || prefixes.contains(child) ? child : null;
+    	}
+
+    	private String string() throws IOException {
+    		sb.setLength(0);
+    		next();
+    		while (c != '"') {
+    			if (c == -1 || c == '\n')
+    				throw error("unterminated string");
+    			if (c == '\\') {
+    				next();
+    				switch (c) {
+    				case 'b': sb.append('\b'); break;
+    				case 'f': sb.append('\f'); break;
+    				case 'n': sb.append('\n'); break;
+    				case 'r': sb.append('\r'); break;
+    				case 't': sb.append('\t'); break;
+    				case 'u':
+    					int u = 0;
+    					for (int i = 0; i < 4; i++) {
+    						next();
+    						int d = Character.digit(c, 16);
+    						if (d < 0)
+    							throw error("invalid \\u escape");
+    						u = u * 16 + d;
+    					}
+    					sb.append((char) u);
+    					break;
+    				case '"': case '\\': case '/': sb.append((char) c); break;
+    				default: throw error("invalid escape");
+    				}
+    			} else {
+    				sb.append((char) c);
+    			}
+    			next();
+    		}
+    		next();
+    		return sb.toString();
+    	}
+
+    	private String skipString() throws IOException {
+    		next();
+    		while (c != '"') {
+    			if (c == -1 || c == '\n')
+    				throw error("unterminated string");
+    			if (c == '\\')
+    				next();
+    			next();
+    		}
+    		next();
+    		return null;
+    	}
+
+    	private void skipWhitespace() throws IOException {
+    		while (c == ' ' || c == '\t' || c == '\r' || c == '\n')
+    			next();
+    	}
+
+    	private void expect(char expected) throws IOException {
+    		if (c != expected)
+    			throw error("expected '" + expected + "'");
+    		next();
+    	}
+
+    	private void next() throws IOException {
+    		if (c == '\n')
+    			line++;
+    		if (pos == len) {
+    			len = in.read(buf, 0, buf.length);
+    			pos = 0;
+    			if (len <= 0) {
+    				len = 0;
+    				c = -1;
+    				return;
+    			}
+    		}
+    		c = buf[pos++];
+    	}
+
+    	private IllegalArgumentException error(String msg) {
+    		return new IllegalArgumentException("JSON: " + msg + " at line " + line);
+    	}
+    }
+
+    // A practical YAML subset: block mappings and sequences by indentation (spaces), plain, single and
+    // double quoted scalars, literal (|) and folded (>) block scalars, comments. Flow collections ([...], {...}),
+    // anchors, aliases, tags and multi-line quoted scalars are rejected.
+    private static final class YamlParser {
+    	private final BufferedReader in;
+    	private final Properties target;
+    	private final Set<String> keys;
+    	private final ArrayDeque<Level> levels = new ArrayDeque<>();
+    	private String pushedBack;
+    	private int line;
+
+    	// a mapping or sequence and the indentation of its entries
+    	private static final class Level {
+    		private final int indent;
+    		private final String path;
+    		private boolean sequence;
+    		private int index;
+
+    		private Level(int indent, String path) {
+    			this.indent = indent;
+    			this.path = path;
+    		}
+    	}
+
+    	private YamlParser(BufferedReader in, Properties target, Set<String> keys) {
+    		this.in = in;
+    		this.target = target;
+    		this.keys = keys;
+    	}
+
+    	private static void parse(BufferedReader in, Properties target, Set<String> keys) throws IOException {
+    		new YamlParser(in, target, keys).parse();
+    	}
+
+    	private void parse() throws IOException {
+    		String pending = null; // a key or item without a value, its children follow
+    		int pendingIndent = -1;
+    		boolean pendingItem = false;
+    		String raw;
+    		while ((raw = nextLine()) != null) {
+    			String text = stripComment(raw);
+    			if (text.isEmpty() || text.equals("---") && levels.isEmpty())
+    				continue;
+    			int indent = 0;
+    			while (indent < text.length() && text.charAt(indent) == ' ')
+    				indent++;
+    			if (text.charAt(indent) == '\t')
+    				throw error("tabs are not allowed for indentation");
+    			String content = text.substring(indent);
+    			if (pending != null) {
+    				if (indent > pendingIndent || indent == pendingIndent && !pendingItem && isItem(content))
+    					levels.push(new Level(indent, pending));
+    				pending = null;
+    			}
+    			if (levels.isEmpty())
+    				levels.push(new Level(indent, ""));
+    			while (levels.size() > 1 && (levels.peek().indent > indent
+    					|| levels.peek().indent == indent && levels.peek().sequence && !isItem(content)))
+    				levels.pop();
+    			Level level = levels.peek();
+    			if (level.indent != indent)
+    				throw error("bad indentation");
+    			if (isItem(content)) {
+    				level.sequence = true;
+    				String path = child(level.path, Integer.toString(level.index++));
+    				int column = indent + 1;
+    				while (column < text.length() && text.charAt(column) == ' ')
+    					column++;
+    				content = text.substring(column);
+    				if (content.isEmpty()) {
+    					pending = path;
+    					pendingIndent = indent;
+    					pendingItem = true;
+    					continue;
+    				}
+    				if (keyEnd(content) < 0) {
+    					scalar(path, content);
+    					continue;
+    				}
+    				// "- key: value", a mapping in the item
+    				level = new Level(column, path);
+    				levels.push(level);
+    				indent = column;
+    			}
+    			int colon = keyEnd(content);
+    			if (colon < 0)
+    				throw error("expected 'key: value'");
+    			String path = child(level.path, key(content.substring(0, colon).trim()));
+    			String value = content.substring(colon + 1).trim();
+    			if (value.isEmpty()) {
+    				pending = path;
+    				pendingIndent = indent;
+    				pendingItem = false;
+    			} else if (value.charAt(0) == '|' || value.charAt(0) == '>') {
+    				blockScalar(path, value, indent);
+    			} else {
+    				scalar(path, value);
+    			}
+    		}
+    	}
+
+    	private static boolean isItem(String content) {
+    		return content.equals("-") || content.startsWith("- ");
+    	}
+
+    	// the index of the ':' of "key: value" or "key:", -1 if there is none
+    	private int keyEnd(String content) {
+    		int from = 0;
+    		char q = content.charAt(0);
+    		if (q == '"' || q == '\'') {
+    			from = content.indexOf(q, 1);
+    			if (from < 0)
+    				throw error("unterminated quoted key");
+    		}
+    		for (int i = content.indexOf(':', from); i >= 0; i = content.indexOf(':', i + 1)) {
+    			if (i + 1 == content.length() || content.charAt(i + 1) == ' ')
+    				return i;
+    		}
+    		return -1;
+    	}
+
+    	private String key(String key) {
+    		if (key.isEmpty())
+    			throw error("empty key");
+    		char q = key.charAt(0);
+    		return q == '"' || q == '\'' ? quoted(key) : key;
+    	}
+
+    	private void scalar(String path, String value) {
+    		char first = value.charAt(0);
+    		if (first == '[' || first == '{')
+    			throw error("flow collections are not supported");
+    		if (first == '&' || first == '*' || first == '!')
+    			throw error("anchors, aliases and tags are not supported");
+    		if (first == '"' || first == '\'')
+    			value = quoted(value);
+    		else if (value.equals("~") || value.equals("null") || value.equals("Null") || value.equals("NULL"))
+    			return;
+    		emit(path, value);
+    	}
+
+    	// a complete quoted scalar, the quote must end the text
+    	private String quoted(String text) {
+    		char q = text.charAt(0);
+    		StringBuilder sb = new StringBuilder(text.length());
+    		int i = 1;
+    		for (; i < text.length(); i++) {
+    			char ch = text.charAt(i);
+    			if (ch == q) {
+    				if (q == '\'' && i + 1 < text.length() && text.charAt(i + 1) == '\'') {
+    					sb.append('\'');
+    					i++;
+    					continue;
+    				}
+    				break;
+    			}
+    			if (ch == '\\' && q == '"' && i + 1 < text.length()) {
+    				ch = text.charAt(++i);
+    				switch (ch) {
+    				case 'n': sb.append('\n'); break;
+    				case 't': sb.append('\t'); break;
+    				case 'r': sb.append('\r'); break;
+    				case '0': sb.append('\0'); break;
+    				case 'u':
+    					if (i + 4 >= text.length())
+    						throw error("invalid \\u escape");
+    					try {
+    						sb.append((char) Integer.parseInt(text.substring(i + 1, i + 5), 16));
+    					} catch (NumberFormatException e) {
+    						throw error("invalid \\u escape");
+    					}
+    					i += 4;
+    					break;
+    				case '"': case '\\': case '/': case ' ': sb.append(ch); break;
+    				default: throw error("invalid escape");
+    				}
+    			} else {
+    				sb.append(ch);
+    			}
+    		}
+    		if (i >= text.length())
+    			throw error("unterminated quoted scalar");
+    		if (i + 1 != text.length())
+    			throw error("unexpected content after the quoted scalar");
+    		return sb.toString();
+    	}
+
+    	// | (literal, lines kept) or > (folded, lines joined by spaces), chomping: clip, - strip, + keep
+    	private void blockScalar(String path, String header, int parentIndent) throws IOException {
+    		char chomp = header.length() > 1 ? header.charAt(1) : ' ';
+    		if (header.length() > 2 || chomp != ' ' && chomp != '-' && chomp != '+')
+    			throw error("unsupported block scalar header '" + header + "'");
+    		boolean folded = header.charAt(0) == '>';
+    		StringBuilder sb = new StringBuilder();
+    		int blockIndent = -1;
+    		int newlines = 0; // line breaks since the last content line
+    		boolean started = false;
+    		String raw;
+    		while ((raw = nextLine()) != null) {
+    			int indent = 0;
+    			while (indent < raw.length() && raw.charAt(indent) == ' ')
+    				indent++;
+    			if (indent == raw.length()) { // empty line
+    				newlines++;
+    				continue;
+    			}
+    			if (blockIndent < 0)
+    				blockIndent = indent;
+    			if (indent <= parentIndent || indent < blockIndent) {
+    				pushedBack = raw;
+    				line--;
+    				break;
+    			}
+    			if (!started) {
+    				for (int i = 0; i < newlines; i++)
+    					sb.append('\n');
+    				started = true;
+    			} else if (folded && newlines == 1) {
+    				sb.append(' ');
+    			} else {
+    				for (int i = folded ? 1 : 0; i < newlines; i++)
+    					sb.append('\n');
+    			}
+    			newlines = 1;
+    			sb.append(raw, blockIndent, raw.length());
+    		}
+    		if (chomp == '+')
+    			for (int i = 0; i < newlines; i++)
+    				sb.append('\n');
+    		else if (chomp == ' ' && started)
+    			sb.append('\n');
+    		emit(path, sb.toString());
+    	}
+
+    	// removes a comment (# at the start or after a space, outside of quotes) and trailing spaces
+    	private static String stripComment(String raw) {
+    		char quote = 0;
+    		int end = raw.length();
+    		for (int i = 0; i < raw.length(); i++) {
+    			char ch = raw.charAt(i);
+    			if (quote != 0) {
+    				if (ch == '\\' && quote == '"')
+    					i++;
+    				else if (ch == quote)
+    					quote = 0;
+    			} else if (ch == '"' || ch == '\'') {
+    				if (i == 0 || " -:[{,".indexOf(raw.charAt(i - 1)) >= 0)
+    					quote = ch;
+    			} else if (ch == '#' && (i == 0 || raw.charAt(i - 1) == ' ' || raw.charAt(i - 1) == '\t')) {
+    				end = i;
+    				break;
+    			}
+    		}
+    		while (end > 0 && Character.isWhitespace(raw.charAt(end - 1)))
+    			end--;
+    		return raw.substring(0, end);
+    	}
+
+    	private static String child(String path, String name) {
+    		return path.isEmpty() ? name : path + '.' + name;
+    	}
+
+    	private void emit(String path, String value) {
+    		if (keys == null || keys.contains(path))
+    			target.setProperty(path, value);
+    	}
+
+    	private String nextLine() throws IOException {
+    		line++;
+    		if (pushedBack != null) {
+    			String l = pushedBack;
+    			pushedBack = null;
+    			return l;
+    		}
+    		return in.readLine();
+    	}
+
+    	private IllegalArgumentException error(String msg) {
+    		return new IllegalArgumentException("YAML: " + msg + " at line " + line);
+    	}
+    }
+
+    // the dotted parents of the keys: a.b.c -> a, a.b
+    private static Set<String> prefixes(Set<String> keys) {
+         Set<String> prefixes = new HashSet<>();
+         for (String key : keys) {
+             for (int i = key.indexOf('.'); i > 0; i = key.indexOf('.', i + 1))
+                 prefixes.add(key.substring(0, i));
+         }
+         return prefixes;
+    }
+
     //// CCLLAASSGGEENN
     private static class ClassGenerator {
         private static final int MAGIC = 0xCAFEBABE;
         private static final short MINOR_VERSION = 0;
         private static final short MAJOR_VERSION = 52; // Java 8
         private static final short ACC_PUBLIC = 0x0001;
+        private static final short ACC_PRIVATE = 0x0002;
+        private static final short ACC_STATIC = 0x0008;
         private static final short ACC_FINAL = 0x0010;
         private static final byte CONSTANT_UTF8 = 1;
         private static final byte CONSTANT_INTEGER = 3;
@@ -398,10 +2834,27 @@ public final class ConfigManager {
         private static final byte CONSTANT_DOUBLE =	6;
         private static final byte CONSTANT_CLASS = 7;
         private static final byte CONSTANT_STRING_REF = 8;
-        private static final byte CONSTANT_NAME_AND_TYPE = 12;
+        private static final byte CONSTANT_FIELD_REF = 9;
         private static final byte CONSTANT_METHOD_REF = 10;
+        private static final byte CONSTANT_NAME_AND_TYPE = 12;
         private static final String DELIMITER = "-";
+        private static final int MAX_UTF8_LENGTH = 0xFFFF; // CONSTANT_Utf8 length is an u2
         private static final boolean DUMP_CLASS_FILE = false;
+        private static final String COUNTER_SUFFIX = "$reads";
+        private static final String LONG_ADDER = "java/util/concurrent/atomic/LongAdder";
+        // field type -> wrapper class and its unboxing method, for the constructor of a template
+        private static final Map<String, String> BOXES = new HashMap<>();
+        private static final Map<String, String> UNBOX = new HashMap<>();
+        static {
+            BOXES.put("I", "java/lang/Integer");
+            BOXES.put("J", "java/lang/Long");
+            BOXES.put("D", "java/lang/Double");
+            BOXES.put("Z", "java/lang/Boolean");
+            UNBOX.put("I", "intValue");
+            UNBOX.put("J", "longValue");
+            UNBOX.put("D", "doubleValue");
+            UNBOX.put("Z", "booleanValue");
+        }
 
         private static class Clazz {
             private static class MethodInfo {
@@ -424,6 +2877,10 @@ public final class ConfigManager {
             private List<Double> doubleRefs         = new ArrayList<>();            
             private List<Long> longRefs             = new ArrayList<>();
             private Map<String, Short> classes      = new LinkedHashMap<>();
+            private Map<String, Short> nameAndTypes = new LinkedHashMap<>(); // name@descriptor
+            private Map<String, Byte> memberRefs    = new LinkedHashMap<>(); // owner.name@descriptor -> field- or method-ref
+            private Map<String, Short> fields       = new LinkedHashMap<>(); // name@descriptor -> access flags
+            private List<Function<Clazz, byte[]>> staticInit = new ArrayList<>();
             private Map<String, MethodInfo> methods = new LinkedHashMap<>();
             private short index           = 1;
             private String thisClass      = "";
@@ -534,14 +2991,39 @@ public final class ConfigManager {
                 return -1;
             }
 
+            // first index behind the value constants: name and types, followed by field- and method-refs
+            private short refBase() {
+                return (short) (strings.size() + classes.size() + stringRefs.size() + intRefs.size() + (doubleRefs.size()*2) + (longRefs.size()*2));
+            }
+
+            private short getNameAndTypePos(String value) {
+                short i = 1;
+                for (String cc : nameAndTypes.keySet()) {
+                    if (cc.equals(value))
+                        return (short) (i + refBase());
+                    i++;
+                }
+                return -1;
+            }
+
+            private short getMemberRefPos(String value) {
+                short i = 1;
+                for (String cc : memberRefs.keySet()) {
+                    if (cc.equals(value))
+                        return (short) (i + refBase() + nameAndTypes.size());
+                    i++;
+                }
+                return -1;
+            }
+
             private byte[] getClassBytes() throws IOException {
                 ByteArrayOutputStream baos = new ByteArrayOutputStream(1024);
                 DataOutputStream data = new DataOutputStream(baos);
                 data.writeInt(MAGIC);
                 data.writeShort(MINOR_VERSION);
                 data.writeShort(MAJOR_VERSION);
-                short constPoolEnd = (short)(strings.size() + classes.size() + stringRefs.size() + intRefs.size() + (doubleRefs.size()*2) + (longRefs.size()*2)); 
-                data.writeShort(constPoolEnd + 1 + 2); // pool size
+                short constPoolEnd = (short)(refBase() + nameAndTypes.size() + memberRefs.size());
+                data.writeShort(constPoolEnd + 1); // pool size
 
                 //
                 // construct constant pool
@@ -550,6 +3032,8 @@ public final class ConfigManager {
                 for (Entry<String, Short> strs : strings.entrySet()) {
                     data.writeByte(CONSTANT_UTF8);
                     byte[] utf8Bytes = encodeModifiedUTF8(strs.getKey());
+                    if (utf8Bytes.length > MAX_UTF8_LENGTH)
+                        throw new IllegalArgumentException("Constant too large: " + utf8Bytes.length + " bytes");
                     data.writeShort(utf8Bytes.length);
                     data.write(utf8Bytes);
                 }
@@ -579,15 +3063,20 @@ public final class ConfigManager {
                     data.writeLong(cls);
                 }
 
-                // 12 = NameAndType        #10:#11        // "<init>":()V
-                data.writeByte(CONSTANT_NAME_AND_TYPE);
-                data.writeShort(getStringPos("<init>"));
-                data.writeShort(getStringPos("()V"));
-                // 10 = Methodref          #4.#12         // java/lang/Object."<init>":()V
-                data.writeByte(CONSTANT_METHOD_REF);
-                data.writeShort(getClassPos(superClass) + strings.size());
-                data.writeShort(constPoolEnd + 1);
-                short ctorMethodRef = (short) (constPoolEnd + 2);
+                // 7. nameAndTypes, e.g. "<init>":()V
+                for (String nt : nameAndTypes.keySet()) {
+                    String[] key = nt.split("@");
+                    data.writeByte(CONSTANT_NAME_AND_TYPE);
+                    data.writeShort(getStringPos(key[0]));
+                    data.writeShort(getStringPos(key[1]));
+                }
+                // 8. field- and method-refs, e.g. java/lang/Object."<init>":()V
+                for (Entry<String, Byte> ref : memberRefs.entrySet()) {
+                    int dot = ref.getKey().indexOf('.');
+                    data.writeByte(ref.getValue());
+                    data.writeShort(getClassPos(ref.getKey().substring(0, dot)) + strings.size());
+                    data.writeShort(getNameAndTypePos(ref.getKey().substring(dot + 1)));
+                }
                 
                 data.writeShort(ACC_PUBLIC | ACC_FINAL);                   // Write class access flags
                 data.writeShort(getClassPos(thisClass) + strings.size());  // Write this class
@@ -598,7 +3087,14 @@ public final class ConfigManager {
                 } else {
                     data.writeShort(0); // Write interfaces count=0
                 }
-                data.writeShort(0);                                        // Write fields count
+                data.writeShort(fields.size());                            // Write fields count
+                for (Entry<String, Short> f : fields.entrySet()) {
+                    String[] key = f.getKey().split("@");
+                    data.writeShort(f.getValue());
+                    data.writeShort(getStringPos(key[0]));
+                    data.writeShort(getStringPos(key[1]));
+                    data.writeShort(0);                                    // attributes count
+                }
 
                 // Write methods
                 data.writeShort(methods.size());                           // Write methods count
@@ -619,12 +3115,6 @@ public final class ConfigManager {
                     data.writeShort(methodInfo.maxStack);  // Max stack
                     data.writeShort(methodInfo.maxLocals); // Max locals
                     data.writeInt(code.length);
-
-                    if("<init>@()V".equals(m.getKey())) {
-                        // patch method ref
-                        code[2]= (byte)(ctorMethodRef >> 8 & 0xFF);
-                        code[3]= (byte)(ctorMethodRef & 0xFF);
-                    }
                     data.write(code);
                     data.writeShort(methodInfo.exceptionTableLength); // Exception table length
                     data.writeShort(methodInfo.attributesCount);      // Attributes count
@@ -639,6 +3129,43 @@ public final class ConfigManager {
                 return classes.computeIfAbsent(value, s -> idx);
             }
 
+            private void addNameAndTypeConstant(String name, String descriptor) {
+                short idx = addUtf8Constant(name);
+                addUtf8Constant(descriptor);
+                nameAndTypes.putIfAbsent(name + "@" + descriptor, idx);
+            }
+
+            private void addMemberRefConstant(byte tag, String owner, String name, String descriptor) {
+                addClassConstant(owner);
+                addNameAndTypeConstant(name, descriptor);
+                memberRefs.putIfAbsent(owner + "." + name + "@" + descriptor, tag);
+            }
+
+            private void addField(String name, String descriptor, short accessFlags) {
+                addUtf8Constant(name);
+                addUtf8Constant(descriptor);
+                fields.putIfAbsent(name + "@" + descriptor, accessFlags);
+            }
+
+            // appends code to the static initializer, which is created on first use
+            private void addStaticInit(int maxStack, Function<Clazz, byte[]> codeFunc) {
+                if (staticInit.isEmpty()) {
+                    addMethod("<clinit>", "()V", ACC_STATIC, cls -> {
+                        ByteArrayOutputStream code = new ByteArrayOutputStream(64);
+                        for (Function<Clazz, byte[]> part : cls.staticInit) {
+                            byte[] bytes = part.apply(cls);
+                            code.write(bytes, 0, bytes.length);
+                        }
+                        code.write(0xB1); // return
+                        return code.toByteArray();
+                    });
+                }
+                staticInit.add(codeFunc);
+                MethodInfo clinit = methods.get("<clinit>@()V");
+                clinit.maxStack = (short) Math.max(clinit.maxStack, maxStack);
+                clinit.maxLocals = 0;
+            }
+
             private short addStringRefConstant(String value) {
                 short idx = addUtf8Constant(value);
                 return stringRefs.computeIfAbsent(value, s -> idx);
@@ -701,10 +3228,132 @@ public final class ConfigManager {
 
             private void addStringMethod(String name, String descriptor, short accessFlags, String retValue)
             {
+                if (encodeModifiedUTF8(retValue).length > MAX_UTF8_LENGTH) {
+                    addLargeStringMethod(name, descriptor, accessFlags, retValue);
+                    return;
+                }
                 addStringRefConstant(retValue);
                 addMethod(name, descriptor, accessFlags, clz -> returnStringConstant(clz,retValue));
             }
 
+            // returns a pre-built instance of implClass, created once in the static initializer
+            private void addObjectMethod(String name, String descriptor, short accessFlags, String implClass)
+            {
+                String fieldType = descriptor.substring(descriptor.indexOf(')') + 1);
+                addField(name, fieldType, (short) (ACC_PRIVATE | ACC_STATIC | ACC_FINAL));
+                addMemberRefConstant(CONSTANT_METHOD_REF, implClass, "<init>", "()V");
+                addMemberRefConstant(CONSTANT_FIELD_REF, thisClass, name, fieldType);
+                addStaticInit(2, cls -> newObjectToStatic(cls, implClass, name, fieldType));
+                addMethod(name, descriptor, accessFlags, cls -> returnStaticObject(cls, name, fieldType));
+            }
+
+            // Too large for one CONSTANT_Utf8: split into chunks, which are joined and interned once
+            // in the static initializer. The method returns the static final field.
+            private void addLargeStringMethod(String name, String descriptor, short accessFlags, String retValue)
+            {
+                List<String> chunks = splitModifiedUTF8(retValue, MAX_UTF8_LENGTH);
+                for (String chunk : chunks)
+                    addStringRefConstant(chunk);
+                String fieldType = "Ljava/lang/String;";
+                addField(name, fieldType, (short) (ACC_PRIVATE | ACC_STATIC | ACC_FINAL));
+                addMemberRefConstant(CONSTANT_METHOD_REF, "java/lang/StringBuilder", "<init>", "()V");
+                addMemberRefConstant(CONSTANT_METHOD_REF, "java/lang/StringBuilder", "append", "(Ljava/lang/String;)Ljava/lang/StringBuilder;");
+                addMemberRefConstant(CONSTANT_METHOD_REF, "java/lang/StringBuilder", "toString", "()Ljava/lang/String;");
+                addMemberRefConstant(CONSTANT_METHOD_REF, "java/lang/String", "intern", "()Ljava/lang/String;");
+                addMemberRefConstant(CONSTANT_FIELD_REF, thisClass, name, fieldType);
+                addStaticInit(2, cls -> joinToStatic(cls, chunks, name, fieldType));
+                addMethod(name, descriptor, accessFlags, cls -> returnStaticObject(cls, name, fieldType));
+            }
+
+            // @RolloutFlag: bucket(id) < percent, branch-free and without allocation (see rolloutBucket()).
+            // percentField: the percent is this int field of a template (null: the constant percent)
+            private void addRolloutMethod(String name, String descriptor, short accessFlags, int percent, String percentField)
+            {
+                boolean isString = descriptor.startsWith("(Ljava/lang/String;)");
+                addLongRefConstant(ROLLOUT_MIX1);
+                addLongRefConstant(ROLLOUT_MIX2);
+                addLongRefConstant(100L);
+                if (isString)
+                    addMemberRefConstant(CONSTANT_METHOD_REF, "java/lang/String", "hashCode", "()I");
+                if (percentField != null) {
+                    addField(percentField, "I", (short) (ACC_PRIVATE | ACC_FINAL));
+                    addMemberRefConstant(CONSTANT_FIELD_REF, thisClass, percentField, "I");
+                }
+                addMethod(name, descriptor, accessFlags, cls -> rollout(cls, isString, percent, percentField));
+                MethodInfo method = methods.get(name + "@" + descriptor);
+                method.maxStack = 5;
+                method.maxLocals = (short) (isString ? 2 : 3);
+            }
+
+            // returns the final instance field of a template, set by the constructor
+            private void addFieldMethod(String name, String descriptor, short accessFlags, String field)
+            {
+                String fieldType = descriptor.substring(descriptor.indexOf(')') + 1);
+                addField(field, fieldType, (short) (ACC_PRIVATE | ACC_FINAL));
+                addMemberRefConstant(CONSTANT_FIELD_REF, thisClass, field, fieldType);
+                addMethod(name, descriptor, accessFlags, cls -> returnField(cls, field, fieldType));
+            }
+
+            // the constructor of a template: fields[i] = (unboxed) args[i], fields are {name, type}
+            private void addTemplateCTor(List<String[]> fields)
+            {
+                addMemberRefConstant(CONSTANT_METHOD_REF, superClass, "<init>", "()V");
+                for (String[] field : fields) {
+                    String boxed = BOXES.get(field[1]);
+                    if (boxed != null) {
+                        addClassConstant(boxed);
+                        addMemberRefConstant(CONSTANT_METHOD_REF, boxed, UNBOX.get(field[1]), "()" + field[1]);
+                    } else {
+                        addClassConstant(field[1].substring(1, field[1].length() - 1));
+                    }
+                }
+                addMethod("<init>", "([Ljava/lang/Object;)V", ACC_PUBLIC, cls -> templateCTor(cls, fields));
+                MethodInfo ctor = methods.get("<init>@([Ljava/lang/Object;)V");
+                ctor.maxStack = 4;
+                ctor.maxLocals = 2;
+            }
+
+            // access counting: the accessor calls increment() of a LongAdder (static final field <name>$reads)
+            // before it returns the value
+            private void countAccess(String name, String descriptor)
+            {
+                String field = name + COUNTER_SUFFIX;
+                String fieldType = "L" + LONG_ADDER + ";";
+                addField(field, fieldType, (short) (ACC_PRIVATE | ACC_STATIC | ACC_FINAL));
+                addMemberRefConstant(CONSTANT_METHOD_REF, LONG_ADDER, "<init>", "()V");
+                addMemberRefConstant(CONSTANT_METHOD_REF, LONG_ADDER, "increment", "()V");
+                addMemberRefConstant(CONSTANT_FIELD_REF, thisClass, field, fieldType);
+                addStaticInit(2, cls -> newObjectToStatic(cls, LONG_ADDER, field, fieldType));
+                MethodInfo method = methods.get(name + "@" + descriptor);
+                Function<Clazz, byte[]> code = method.code;
+                method.code = cls -> {
+                    ByteArrayOutputStream out = new ByteArrayOutputStream(16);
+                    byte[] increment = incrementStatic(cls, field, fieldType);
+                    byte[] ret = code.apply(cls);
+                    out.write(increment, 0, increment.length);
+                    out.write(ret, 0, ret.length);
+                    return out.toByteArray();
+                };
+            }
+
+            private static List<String> splitModifiedUTF8(String input, int maxBytes) {
+                List<String> chunks = new ArrayList<>();
+                int start = 0;
+                int bytes = 0;
+                for (int i = 0; i < input.length(); i++) {
+                    int c = input.charAt(i);
+                    int len = (c >= 0x0001 && c <= 0x007F) ? 1 : (c <= 0x07FF ? 2 : 3);
+                    if (bytes + len > maxBytes) {
+                        chunks.add(input.substring(start, i));
+                        start = i;
+                        bytes = 0;
+                    }
+                    bytes += len;
+                }
+                chunks.add(input.substring(start));
+                return chunks;
+            }
+
             private void addMethod(String name, String descriptor, short accessFlags, Function<Clazz, byte[]> codeFunc)
             {
                 assert !name.isEmpty();
@@ -722,14 +3371,146 @@ public final class ConfigManager {
                 });
             }
             
-            private static byte[] callObjectCTor() {
+            private static byte[] callObjectCTor(Clazz cls) {
+                short idx = cls.getMemberRefPos(cls.superClass + ".<init>@()V");
             	return new byte[] {
             		(byte) 0x2A,    // aload_0
                     (byte) 0xB7,    // invokespecial
-                    (byte) 0xFF,    // Methodref index for Object.<init>
-                    (byte) 0xFF,	// patch in later
+                    (byte)(idx >> 8 & 0xFF),    // Methodref index for Object.<init>
+                    (byte)(idx & 0xFF),
                     (byte) 0xB1};   // return
             	}
+
+            private static byte[] newObjectToStatic(Clazz cls, String implClass, String field, String fieldType) {
+                short clsIdx = (short) (cls.getClassPos(implClass) + cls.strings.size());
+                short ctorIdx = cls.getMemberRefPos(implClass + ".<init>@()V");
+                short fieldIdx = cls.getMemberRefPos(cls.thisClass + "." + field + "@" + fieldType);
+                // new #cls, dup, invokespecial #<init>, putstatic #field
+                return new byte[] {
+                    (byte) 0xBB, (byte)(clsIdx >> 8 & 0xFF), (byte)(clsIdx & 0xFF),
+                    (byte) 0x59,
+                    (byte) 0xB7, (byte)(ctorIdx >> 8 & 0xFF), (byte)(ctorIdx & 0xFF),
+                    (byte) 0xB3, (byte)(fieldIdx >> 8 & 0xFF), (byte)(fieldIdx & 0xFF)};
+            }
+
+            private static byte[] joinToStatic(Clazz cls, List<String> chunks, String field, String fieldType) {
+                String sb = "java/lang/StringBuilder";
+                short clsIdx = (short) (cls.getClassPos(sb) + cls.strings.size());
+                short ctorIdx = cls.getMemberRefPos(sb + ".<init>@()V");
+                short appendIdx = cls.getMemberRefPos(sb + ".append@(Ljava/lang/String;)Ljava/lang/StringBuilder;");
+                short toStringIdx = cls.getMemberRefPos(sb + ".toString@()Ljava/lang/String;");
+                short internIdx = cls.getMemberRefPos("java/lang/String.intern@()Ljava/lang/String;");
+                short fieldIdx = cls.getMemberRefPos(cls.thisClass + "." + field + "@" + fieldType);
+                ByteArrayOutputStream code = new ByteArrayOutputStream(16 + chunks.size() * 6);
+                // new StringBuilder, dup, invokespecial #<init>
+                code.write(0xBB); code.write(clsIdx >> 8 & 0xFF); code.write(clsIdx & 0xFF);
+                code.write(0x59);
+                code.write(0xB7); code.write(ctorIdx >> 8 & 0xFF); code.write(ctorIdx & 0xFF);
+                for (String chunk : chunks) {
+                    short idx = (short) (cls.getStringRefPos(chunk) + cls.strings.size() + cls.classes.size());
+                    // ldc_w #chunk, invokevirtual #append
+                    code.write(0x13); code.write(idx >> 8 & 0xFF); code.write(idx & 0xFF);
+                    code.write(0xB6); code.write(appendIdx >> 8 & 0xFF); code.write(appendIdx & 0xFF);
+                }
+                // invokevirtual #toString, invokevirtual #intern, putstatic #field
+                code.write(0xB6); code.write(toStringIdx >> 8 & 0xFF); code.write(toStringIdx & 0xFF);
+                code.write(0xB6); code.write(internIdx >> 8 & 0xFF); code.write(internIdx & 0xFF);
+                code.write(0xB3); code.write(fieldIdx >> 8 & 0xFF); code.write(fieldIdx & 0xFF);
+                return code.toByteArray();
+            }
+
+            private static byte[] rollout(Clazz cls, boolean isString, int percent, String percentField) {
+                short hashCodeIdx = isString ? cls.getMemberRefPos("java/lang/String.hashCode@()I") : 0;
+                short mix1 = cls.longConstantPos(ROLLOUT_MIX1);
+                short mix2 = cls.longConstantPos(ROLLOUT_MIX2);
+                short hundred = cls.longConstantPos(100L);
+                ByteArrayOutputStream code = new ByteArrayOutputStream(48);
+                if (isString) {
+                    // aload_1, invokevirtual #hashCode, i2l
+                    code.write(0x2B);
+                    code.write(0xB6); code.write(hashCodeIdx >> 8 & 0xFF); code.write(hashCodeIdx & 0xFF);
+                    code.write(0x85);
+                } else {
+                    code.write(0x1F); // lload_1
+                }
+                // z = id * MIX1, z = (z ^ z >>> 32) * MIX2, z = z ^ z >>> 32
+                code.write(0x14); code.write(mix1 >> 8 & 0xFF); code.write(mix1 & 0xFF);  // ldc2_w
+                code.write(0x69);                                                       // lmul
+                code.write(0x5C); code.write(0x10); code.write(32); code.write(0x7D);   // dup2, bipush 32, lushr
+                code.write(0x83);                                                       // lxor
+                code.write(0x14); code.write(mix2 >> 8 & 0xFF); code.write(mix2 & 0xFF);
+                code.write(0x69);
+                code.write(0x5C); code.write(0x10); code.write(32); code.write(0x7D);
+                code.write(0x83);
+                // (int) ((z >>> 1) % 100)
+                code.write(0x04); code.write(0x7D);                                     // iconst_1, lushr
+                code.write(0x14); code.write(hundred >> 8 & 0xFF); code.write(hundred & 0xFF);
+                code.write(0x71);                                                       // lrem
+                code.write(0x88);                                                       // l2i
+                // (bucket - percent) >>> 31 is 1 if bucket < percent
+                if (percentField != null) {
+                    short fieldIdx = cls.getMemberRefPos(cls.thisClass + "." + percentField + "@I");
+                    code.write(0x2A);                                                   // aload_0
+                    code.write(0xB4); code.write(fieldIdx >> 8 & 0xFF); code.write(fieldIdx & 0xFF); // getfield
+                } else {
+                    code.write(0x10); code.write(percent);                              // bipush percent
+                }
+                code.write(0x64);                                                       // isub
+                code.write(0x10); code.write(31); code.write(0x7C);                     // bipush 31, iushr
+                code.write(0xAC);                                                       // ireturn
+                return code.toByteArray();
+            }
+
+            private static byte[] templateCTor(Clazz cls, List<String[]> fields) {
+                short superIdx = cls.getMemberRefPos(cls.superClass + ".<init>@()V");
+                ByteArrayOutputStream code = new ByteArrayOutputStream(8 + fields.size() * 16);
+                // aload_0, invokespecial #Object.<init>
+                code.write(0x2A);
+                code.write(0xB7); code.write(superIdx >> 8 & 0xFF); code.write(superIdx & 0xFF);
+                for (int i = 0; i < fields.size(); i++) {
+                    String field = fields.get(i)[0];
+                    String fieldType = fields.get(i)[1];
+                    String boxed = BOXES.get(fieldType);
+                    short clsIdx = (short) (cls.getClassPos(boxed != null ? boxed : fieldType.substring(1, fieldType.length() - 1)) + cls.strings.size());
+                    short fieldIdx = cls.getMemberRefPos(cls.thisClass + "." + field + "@" + fieldType);
+                    // aload_0, aload_1, sipush i, aaload, checkcast #cls
+                    code.write(0x2A);
+                    code.write(0x2B);
+                    code.write(0x11); code.write(i >> 8 & 0xFF); code.write(i & 0xFF);
+                    code.write(0x32);
+                    code.write(0xC0); code.write(clsIdx >> 8 & 0xFF); code.write(clsIdx & 0xFF);
+                    if (boxed != null) { // invokevirtual #intValue ...
+                        short unboxIdx = cls.getMemberRefPos(boxed + "." + UNBOX.get(fieldType) + "@()" + fieldType);
+                        code.write(0xB6); code.write(unboxIdx >> 8 & 0xFF); code.write(unboxIdx & 0xFF);
+                    }
+                    // putfield #field
+                    code.write(0xB5); code.write(fieldIdx >> 8 & 0xFF); code.write(fieldIdx & 0xFF);
+                }
+                code.write(0xB1); // return
+                return code.toByteArray();
+            }
+
+            private static byte[] returnField(Clazz cls, String field, String fieldType) {
+                short idx = cls.getMemberRefPos(cls.thisClass + "." + field + "@" + fieldType);
+                int ret = fieldType.equals("J") ? 0xAD : fieldType.equals("D") ? 0xAF : fieldType.startsWith("L") ? 0xB0 : 0xAC;
+                //  aload_0,  getfield #idx,  ireturn/lreturn/dreturn/areturn
+                return new byte[] {(byte) 0x2A, (byte) 0xB4, (byte)(idx >> 8 & 0xFF), (byte)(idx & 0xFF), (byte) ret};
+            }
+
+            private static byte[] incrementStatic(Clazz cls, String field, String fieldType) {
+                short fieldIdx = cls.getMemberRefPos(cls.thisClass + "." + field + "@" + fieldType);
+                short incrementIdx = cls.getMemberRefPos(LONG_ADDER + ".increment@()V");
+                //  getstatic #field,  invokevirtual #increment
+                return new byte[] {
+                    (byte) 0xB2, (byte)(fieldIdx >> 8 & 0xFF), (byte)(fieldIdx & 0xFF),
+                    (byte) 0xB6, (byte)(incrementIdx >> 8 & 0xFF), (byte)(incrementIdx & 0xFF)};
+            }
+
+            private static byte[] returnStaticObject(Clazz cls, String field, String fieldType) {
+                short idx = cls.getMemberRefPos(cls.thisClass + "." + field + "@" + fieldType);
+                //  getstatic #idx,  areturn
+                return new byte[] {(byte) 0xB2, (byte)(idx >> 8 & 0xFF), (byte)(idx & 0xFF), (byte) 0xB0};
+            }
             private static byte[] returnStringConstant(Clazz cls, String value) {
                 short idx = cls.getStringRefPos(value);
                 idx = (short) (idx + cls.strings.size() + cls.classes.size());
@@ -754,9 +3535,12 @@ public final class ConfigManager {
                 return buffer;
             }
             
+            private short longConstantPos(Long value) {
+                return (short) (getLongRefPos(value) + (doubleRefs.size()*2) + stringRefs.size() + strings.size() + classes.size() + intRefs.size());
+            }
+
             private static byte[] returnLongConstant(Clazz cls, Long value) {
-                short idx = cls.getLongRefPos(value);
-                idx = (short) (idx + (cls.doubleRefs.size()*2) + cls.stringRefs.size() + cls.strings.size() + cls.classes.size() + cls.intRefs.size());
+                short idx = cls.longConstantPos(value);
                 //  ldc2_w #idx,  lreturn
                 byte[] buffer = {0,0,0,0};
                 buffer[0] = (byte) 0x14;
@@ -784,13 +3568,14 @@ public final class ConfigManager {
             return className + "$CG" + System.currentTimeMillis() + "$" +System.nanoTime();
         }
         
-        private static byte[] generateClass(String className, String interfaceName, Map<String, String> methods)
+        private static byte[] generateClass(String className, String interfaceName, Map<String, String> methods, boolean countAccess)
         {
         	ClassGenerator.Clazz clazz = new ClassGenerator.Clazz();
             clazz.thisClass(className);
             clazz.superClass("java/lang/Object");
             clazz.interfaceClass(interfaceName);
-            clazz.addMethod("<init>", "()V", ClassGenerator.ACC_PUBLIC, cls -> ClassGenerator.Clazz.callObjectCTor());
+            clazz.addMemberRefConstant(ClassGenerator.CONSTANT_METHOD_REF, "java/lang/Object", "<init>", "()V");
+            clazz.addMethod("<init>", "()V", ClassGenerator.ACC_PUBLIC, ClassGenerator.Clazz::callObjectCTor);
             // to test with empty main method : clazz.addMethod("main", "([Ljava/lang/String;)V", (short)(ClassGenerator.ACC_PUBLIC | 0x0008 /*ACC_STATIC*/), cls -> new byte[]{(byte) 0xB1});
             for (Entry<String, String> m : methods.entrySet()) {
                 int indexOf = m.getValue().indexOf(ClassGenerator.DELIMITER);
@@ -812,8 +3597,20 @@ public final class ConfigManager {
                     case "()Ljava/lang/String;":
                         clazz.addStringMethod(m.getKey(), retType, ClassGenerator.ACC_PUBLIC, retValue);
                         break;
-                    default: throw new IllegalArgumentException(retType + " not defined");
+                    case "(J)Z": // @RolloutFlag, retValue is the percent
+                    case "(Ljava/lang/String;)Z":
+                        clazz.addRolloutMethod(m.getKey(), retType, ClassGenerator.ACC_PUBLIC, Integer.parseInt(retValue), null);
+                        break;
+                    default:
+                        if (retType.startsWith("()L")) { // nested config interface, retValue is the generated class
+                            clazz.addObjectMethod(m.getKey(), retType, ClassGenerator.ACC_PUBLIC, retValue);
+                            break;
+                        }
+                        throw new IllegalArgumentException(retType + " not defined");
                 }
+                boolean isGroup = retType.startsWith("()L") && !retType.equals("()Ljava/lang/String;");
+                if (countAccess && !isGroup)
+                    clazz.countAccess(m.getKey(), retType);
             }
 
             try {
@@ -823,37 +3620,92 @@ public final class ConfigManager {
 			}
         }
 
+        // A template: one class for all configurations of an interface, methods are {name, descriptor}.
+        // The values are the constructor arguments (Object[] in the order of methods, boxed), each
+        // method returns its final field; a @RolloutFlag field holds the percent.
+        private static byte[] generateTemplateClass(String className, String interfaceName, List<String[]> methods, boolean countAccess)
+        {
+            ClassGenerator.Clazz clazz = new ClassGenerator.Clazz();
+            clazz.thisClass(className);
+            clazz.superClass("java/lang/Object");
+            clazz.interfaceClass(interfaceName);
+            List<String[]> fields = new ArrayList<>(methods.size());
+            for (int i = 0; i < methods.size(); i++) {
+                String name = methods.get(i)[0];
+                String descriptor = methods.get(i)[1];
+                String field = "v" + i;
+                if (descriptor.startsWith("()")) {
+                    clazz.addFieldMethod(name, descriptor, ClassGenerator.ACC_PUBLIC, field);
+                    fields.add(new String[] { field, descriptor.substring(2) });
+                } else { // @RolloutFlag
+                    clazz.addRolloutMethod(name, descriptor, ClassGenerator.ACC_PUBLIC, 0, field);
+                    fields.add(new String[] { field, "I" });
+                }
+                boolean isGroup = descriptor.startsWith("()L") && !descriptor.equals("()Ljava/lang/String;");
+                if (countAccess && !isGroup)
+                    clazz.countAccess(name, descriptor);
+            }
+            clazz.addTemplateCTor(fields);
+            try {
+                return clazz.getClassBytes();
+            } catch (IOException e) {
+                throw new IllegalArgumentException(e);
+            }
+        }
+
+        // one loader for all classes generated in one pass, e.g. a config interface and its nested groups,
+        // or all interfaces of one file in a reload (classData is a ConcurrentHashMap then, see add())
         private static class ByteArrayLoader extends ClassLoader {
-            private byte[] classData;
+            private Map<String, byte[]> classData;
 
-            private ByteArrayLoader(ClassLoader parent, byte[] classData) {
+            private ByteArrayLoader(ClassLoader parent, Map<String, byte[]> classData) {
                 super(parent);
                 this.classData = classData;
             }
 
+            // The generated classes are loaded without asking the parent first: a parallel capable parent
+            // (the application class loader) keeps a lock object per requested class name forever,
+            // with a new class name per reload that's a leak.
+            @Override
+            protected Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
+                if (!classData.containsKey(name.replace('.', '/')))
+                    return super.loadClass(name, resolve);
+                synchronized (getClassLoadingLock(name)) {
+                    Class<?> c = findLoadedClass(name);
+                    if (c == null)
+                        c = findClass(name);
+                    if (resolve)
+                        resolveClass(c);
+                    return c;
+                }
+            }
+
+            private ByteArrayLoader add(Map<String, byte[]> classes) {
+                classData.putAll(classes);
+                return this;
+            }
+
             @Override
             protected Class<?> findClass(String name) throws ClassNotFoundException {
-                try {
+                byte[] data = classData.get(name.replace('.', '/'));
+                if (data == null)
                     return super.findClass(name);
-                } catch (ClassNotFoundException e) {
-                    // bring it to life
-                    return defineClass(name, classData, 0, classData.length);
-                }
+                // bring it to life
+                return defineClass(name, data, 0, data.length);
             }
         }
  
     	@SuppressWarnings("unchecked")
-    	private static <T> T getInstance(String interfaceName, Map<String, String> methods) {
+    	private static <T> T defineInstance(String className, Map<String, byte[]> classes, ByteArrayLoader loader) {
     		try {
-    			String className = calcClassName(interfaceName);
-    			byte[] classData = generateClass(className, interfaceName, methods);
     			if (ClassGenerator.DUMP_CLASS_FILE) {
-					try (FileOutputStream fos = new FileOutputStream(className.replace('/', '.') + ".class")) {
-						fos.write(classData);
-					}
+    				for (Entry<String, byte[]> c : classes.entrySet()) {
+    					try (FileOutputStream fos = new FileOutputStream(c.getKey().replace('/', '.') + ".class")) {
+    						fos.write(c.getValue());
+    					}
+    				}
     			}
-    			ByteArrayLoader classLoader = new ByteArrayLoader(ConfigManager.class.getClassLoader(), classData);
-    			Class<?> loadedClass = classLoader.loadClass(className.replace("/", "."));
+    			Class<?> loadedClass = loader.add(classes).loadClass(className.replace("/", "."));
     			return (T) loadedClass.getDeclaredConstructor().newInstance();
     		} catch (Exception e) {
     			throw new IllegalArgumentException(e);
@@ -890,11 +3742,11 @@ public final class ConfigManager {
             methods.put("getLong1", "()J--1");
             methods.put("getBooleanFalse", "()Z-Nöeee");
             methods.put("getInteger", "()I-12345678");
-            byte[] classData = generateClass(className, interfaceName, methods);
+            byte[] classData = generateClass(className, interfaceName, methods, false);
 
             try (FileOutputStream fos = new FileOutputStream(className.replace('/','.') + ".class")) {
                 fos.write(classData);
-                ByteArrayLoader classLoader = new ByteArrayLoader(ConfigManager.class.getClassLoader(), classData);
+                ByteArrayLoader classLoader = new ByteArrayLoader(ConfigManager.class.getClassLoader(), Collections.singletonMap(className, classData));
                 Class<?> loadedClass = classLoader.loadClass(className.replace("/","."));
                 TestInterface instance = (TestInterface) loadedClass.getDeclaredConstructor().newInstance();
                 PrintStream o = System.out;
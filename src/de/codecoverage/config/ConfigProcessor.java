@@ -0,0 +1,384 @@
+// Adapt the package to your structure:
+package de.codecoverage.config;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.PackageElement;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.tools.Diagnostic;
+import javax.tools.FileObject;
+import javax.tools.StandardLocation;
+
+import de.codecoverage.config.ConfigManager.Configurable;
+import de.codecoverage.config.ConfigManager.ConfigurationGroup;
+import de.codecoverage.config.ConfigManager.ConfigurationValue;
+import de.codecoverage.config.ConfigManager.RolloutFlag;
+
+/**
+ * Compile time support for the config interfaces of the ConfigManager.
+ * Checks the interfaces (return types, parameters, duplicate keys, default values) and generates
+ * for each of them a class returning the default values, plus a registry which is found by the
+ * ConfigManager with the ServiceLoader. The ConfigManager uses these instances as long as no
+ * file overrides a value, so no class has to be defined at runtime (GraalVM native-image).
+ * javac -processorpath bin -processor de.codecoverage.config.ConfigProcessor ...
+ */
+public final class ConfigProcessor extends AbstractProcessor {
+    private static final String REGISTRY = "ConfigManagerPrebuilt";
+    // all annotations inspected by the processor, claimed by it
+    private static final Set<String> ANNOTATIONS = Collections.unmodifiableSet(new HashSet<>(Arrays.asList(
+            Configurable.class.getCanonicalName(), ConfigurationValue.class.getCanonicalName(),
+            ConfigurationGroup.class.getCanonicalName(), RolloutFlag.class.getCanonicalName())));
+    private final List<String> registries = new ArrayList<>();
+    private int round = 0;
+
+    @Override
+    public Set<String> getSupportedAnnotationTypes() {
+        return ANNOTATIONS;
+    }
+
+    @Override
+    public SourceVersion getSupportedSourceVersion() {
+        return SourceVersion.latestSupported();
+    }
+
+    @Override
+    public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+        round++;
+        if (roundEnv.processingOver()) {
+            writeServiceFile();
+            return true;
+        }
+
+        // package -> interface -> generated class
+        Map<String, Map<String, String>> generated = new TreeMap<>();
+        for (Element e : roundEnv.getElementsAnnotatedWith(Configurable.class)) {
+            if (e.getKind() != ElementKind.INTERFACE) {
+                error("@Configurable is only allowed on interfaces", e);
+                continue;
+            }
+            TypeElement iface = (TypeElement) e;
+            if (!check(iface, "", new HashMap<>(), new ArrayDeque<>()))
+                continue;
+            if (!isAccessible(iface) || hasReferences(iface)) {
+                // checked, but the defaults can't be pre-built, generated at runtime instead
+                note("no pre-built defaults for " + iface.getQualifiedName(), iface);
+                continue;
+            }
+            String pkg = packageOf(iface);
+            String className = iface.getQualifiedName().toString().substring(pkg.isEmpty() ? 0 : pkg.length() + 1).replace('.', '_') + "_Defaults";
+            writeSource(pkg, className, defaultsClass(pkg, className, iface), iface);
+            generated.computeIfAbsent(pkg, p -> new LinkedHashMap<>()).put(iface.getQualifiedName().toString(), className);
+        }
+
+        for (Entry<String, Map<String, String>> pkg : generated.entrySet()) {
+            String className = REGISTRY + (round > 1 ? round : "");
+            writeSource(pkg.getKey(), className, registryClass(pkg.getKey(), className, pkg.getValue()), null);
+            registries.add((pkg.getKey().isEmpty() ? "" : pkg.getKey() + ".") + className);
+        }
+        return true;
+    }
+
+    // the same rules as ConfigManager.createConcreteObject(), reported at compile time
+    private boolean check(TypeElement iface, String prefix, Map<String, Element> keys, Deque<TypeElement> groups) {
+        if (groups.contains(iface)) {
+            error("Interface: " + iface.getQualifiedName() + " is nested into itself", groups.peek());
+            return false;
+        }
+        groups.push(iface);
+        boolean ok = true;
+        for (ExecutableElement m : methods(iface)) {
+            ConfigurationValue value = m.getAnnotation(ConfigurationValue.class);
+            ConfigurationGroup group = m.getAnnotation(ConfigurationGroup.class);
+            RolloutFlag flag = m.getAnnotation(RolloutFlag.class);
+            if (flag != null) {
+                String key = prefix + flag.key();
+                Element other = keys.put(key, m);
+                if (other != null) {
+                    error("Duplicate key '" + key + "', already used by " + other.getEnclosingElement() + "." + other, m);
+                    ok = false;
+                }
+                if (m.getReturnType().getKind() != TypeKind.BOOLEAN || m.getParameters().size() != 1 || !isRolloutId(m.getParameters().get(0).asType())) {
+                    error("Method: " + m + " wrong signature, allowed are boolean (long) and boolean (String)", m);
+                    ok = false;
+                }
+                if (flag.defaultPercent() < 0 || flag.defaultPercent() > 100) {
+                    error("Default percent " + flag.defaultPercent() + " of key '" + key + "' not in [0, 100]", m);
+                    ok = false;
+                }
+            } else if (!m.getParameters().isEmpty()) {
+                error("Method: " + m + " has parameters", m);
+                ok = false;
+            } else if (value != null) {
+                String key = prefix + value.key();
+                Element other = keys.put(key, m);
+                if (other != null) {
+                    error("Duplicate key '" + key + "', already used by " + other.getEnclosingElement() + "." + other, m);
+                    ok = false;
+                }
+                if (!isValueType(m.getReturnType())) {
+                    error("Method: " + m + " wrong return type: " + m.getReturnType() + ", allowed are String, boolean, int, long, double", m);
+                    ok = false;
+                } else if (!value.defaultValue().contains("${")) {
+                    try {
+                        literal(m.getReturnType(), value.defaultValue());
+                        String violation = violation(m.getReturnType(), value);
+                        if (violation != null) {
+                            error("Default value '" + value.defaultValue() + "' of key '" + key + "' " + violation, m);
+                            ok = false;
+                        }
+                    } catch (NumberFormatException ex) {
+                        error("Default value '" + value.defaultValue() + "' of key '" + key + "' is not a valid " + m.getReturnType(), m);
+                        ok = false;
+                    } catch (PatternSyntaxException ex) {
+                        error("Invalid regex of key '" + key + "': " + ex.getDescription(), m);
+                        ok = false;
+                    }
+                }
+            } else if (group != null) {
+                TypeElement child = groupType(m);
+                if (child == null) {
+                    error("Method: " + m + " wrong return type, group must be an interface", m);
+                    ok = false;
+                } else {
+                    ok &= check(child, prefix + group.prefix(), keys, groups);
+                }
+            } else {
+                error("Method: " + m + " has no annotation 'ConfigurationValue', 'ConfigurationGroup' or 'RolloutFlag'", m);
+                ok = false;
+            }
+        }
+        groups.pop();
+        return ok;
+    }
+
+    private boolean hasReferences(TypeElement iface) {
+        for (ExecutableElement m : methods(iface)) {
+            ConfigurationValue value = m.getAnnotation(ConfigurationValue.class);
+            if (value != null && value.defaultValue().contains("${"))
+                return true;
+            if (value == null && m.getAnnotation(RolloutFlag.class) == null && (hasReferences(groupType(m)) || !isAccessible(groupType(m))))
+                return true;
+        }
+        return false;
+    }
+
+    private String defaultsClass(String pkg, String className, TypeElement iface) {
+        StringBuilder sb = new StringBuilder(1024);
+        header(sb, pkg);
+        sb.append("// Default values of ").append(iface.getQualifiedName()).append(", generated by ConfigProcessor\n");
+        List<StringBuilder> groups = new ArrayList<>();
+        sb.append("final class ").append(className).append(" implements ").append(iface.getQualifiedName()).append(" {\n");
+        members(sb, iface, "    ", groups);
+        for (StringBuilder group : groups)
+            sb.append(group);
+        sb.append("}\n");
+        return sb.toString();
+    }
+
+    // a nested group is a static nested class, created once in a static final field
+    private void members(StringBuilder sb, TypeElement iface, String indent, List<StringBuilder> groups) {
+        for (ExecutableElement m : methods(iface)) {
+            ConfigurationValue value = m.getAnnotation(ConfigurationValue.class);
+            RolloutFlag flag = m.getAnnotation(RolloutFlag.class);
+            String type = m.getReturnType().toString();
+            if (flag != null) {
+                String id = m.getParameters().get(0).getSimpleName().toString();
+                sb.append(indent).append("@Override public boolean ").append(m.getSimpleName()).append('(').append(m.getParameters().get(0).asType())
+                  .append(' ').append(id).append(") { return ").append(ConfigManager.class.getCanonicalName()).append(".rolloutBucket(").append(id)
+                  .append(") < ").append(flag.defaultPercent()).append("; }\n");
+            } else if (value == null) {
+                TypeElement child = groupType(m);
+                String groupClass = "Group" + (groups.size() + 1);
+                String field = m.getSimpleName().toString().toUpperCase();
+                StringBuilder group = new StringBuilder(512);
+                groups.add(group);
+                group.append("\n    private static final class ").append(groupClass).append(" implements ").append(child.getQualifiedName()).append(" {\n");
+                members(group, child, "        ", groups);
+                group.append("    }\n");
+                sb.append(indent).append("private static final ").append(type).append(' ').append(field).append(" = new ").append(groupClass).append("();\n");
+                sb.append(indent).append("@Override public ").append(type).append(' ').append(m.getSimpleName()).append("() { return ").append(field).append("; }\n");
+            } else {
+                sb.append(indent).append("@Override public ").append(type).append(' ').append(m.getSimpleName()).append("() { return ")
+                  .append(literal(m.getReturnType(), value.defaultValue())).append("; }\n");
+            }
+        }
+    }
+
+    private String registryClass(String pkg, String className, Map<String, String> classes) {
+        StringBuilder sb = new StringBuilder(512);
+        header(sb, pkg);
+        sb.append("// Registry of the pre-built config defaults, generated by ConfigProcessor\n");
+        sb.append("public final class ").append(className).append(" implements ").append(ConfigManager.Prebuilt.class.getCanonicalName()).append(" {\n");
+        sb.append("    @Override\n");
+        sb.append("    public java.util.Map<Class<?>, Object> defaults() {\n");
+        sb.append("        java.util.Map<Class<?>, Object> defaults = new java.util.HashMap<>();\n");
+        for (Entry<String, String> c : classes.entrySet())
+            sb.append("        defaults.put(").append(c.getKey()).append(".class, new ").append(c.getValue()).append("());\n");
+        sb.append("        return defaults;\n");
+        sb.append("    }\n");
+        sb.append("}\n");
+        return sb.toString();
+    }
+
+    private static void header(StringBuilder sb, String pkg) {
+        if (!pkg.isEmpty())
+            sb.append("package ").append(pkg).append(";\n\n");
+    }
+
+    private void writeSource(String pkg, String className, String source, Element origin) {
+        String name = pkg.isEmpty() ? className : pkg + "." + className;
+        try (Writer w = (origin == null ? processingEnv.getFiler().createSourceFile(name) : processingEnv.getFiler().createSourceFile(name, origin)).openWriter()) {
+            w.write(source);
+        } catch (IOException e) {
+            error("Writing " + name + " failed: " + e, origin);
+        }
+    }
+
+    private void writeServiceFile() {
+        if (registries.isEmpty())
+            return;
+        String service = "META-INF/services/" + processingEnv.getElementUtils().getBinaryName(
+                processingEnv.getElementUtils().getTypeElement(ConfigManager.Prebuilt.class.getCanonicalName()));
+        try {
+            FileObject fo = processingEnv.getFiler().createResource(StandardLocation.CLASS_OUTPUT, "", service);
+            try (Writer w = fo.openWriter()) {
+                for (String registry : registries)
+                    w.write(registry + "\n");
+            }
+        } catch (IOException e) {
+            error("Writing " + service + " failed: " + e, null);
+        }
+    }
+
+    private static List<ExecutableElement> methods(TypeElement iface) {
+        List<ExecutableElement> methods = new ArrayList<>();
+        for (Element e : iface.getEnclosedElements()) {
+            if (e.getKind() == ElementKind.METHOD)
+                methods.add((ExecutableElement) e);
+        }
+        return methods;
+    }
+
+    private static TypeElement groupType(ExecutableElement m) {
+        TypeMirror type = m.getReturnType();
+        if (type.getKind() != TypeKind.DECLARED)
+            return null;
+        Element e = ((DeclaredType) type).asElement();
+        return e.getKind() == ElementKind.INTERFACE ? (TypeElement) e : null;
+    }
+
+    private static boolean isRolloutId(TypeMirror type) {
+        return type.getKind() == TypeKind.LONG || "java.lang.String".equals(type.toString());
+    }
+
+    private static boolean isValueType(TypeMirror type) {
+        switch (type.getKind()) {
+            case BOOLEAN:
+            case INT:
+            case LONG:
+            case DOUBLE:
+                return true;
+            case DECLARED:
+                return "java.lang.String".equals(type.toString());
+            default:
+                return false;
+        }
+    }
+
+    // the generated class lives in the package of the interface
+    private static boolean isAccessible(TypeElement iface) {
+        for (Element e = iface; e.getKind() != ElementKind.PACKAGE; e = e.getEnclosingElement()) {
+            if (e.getModifiers().contains(Modifier.PRIVATE))
+                return false;
+        }
+        return true;
+    }
+
+    private static String packageOf(Element e) {
+        while (e.getKind() != ElementKind.PACKAGE)
+            e = e.getEnclosingElement();
+        return ((PackageElement) e).getQualifiedName().toString();
+    }
+
+    // the value converted like ConfigManager.convert() does, as java literal
+    private static String literal(TypeMirror type, String value) {
+        switch (type.getKind()) {
+            case BOOLEAN:
+                return Boolean.toString(Boolean.parseBoolean(value));
+            case INT:
+                return Integer.toString(Integer.valueOf(value));
+            case LONG:
+                return Long.valueOf(value) + "L";
+            case DOUBLE:
+                double d = Double.valueOf(value);
+                if (Double.isNaN(d))
+                    return "Double.NaN";
+                if (Double.isInfinite(d))
+                    return d > 0 ? "Double.POSITIVE_INFINITY" : "Double.NEGATIVE_INFINITY";
+                return Double.toString(d);
+            default:
+                StringBuilder sb = new StringBuilder(value.length() + 2).append('"');
+                for (char c : value.toCharArray()) {
+                    if (c == '"' || c == '\\')
+                        sb.append('\\').append(c);
+                    else if (c < 0x20 || c > 0x7E)
+                        sb.append(String.format("\\u%04x", (int) c));
+                    else
+                        sb.append(c);
+                }
+                return sb.append('"').toString();
+        }
+    }
+
+    // the constraints of @ConfigurationValue checked like ConfigManager.validate() does, null if the default is valid
+    private static String violation(TypeMirror type, ConfigurationValue value) {
+        String v = value.defaultValue();
+        if (value.nonEmpty() && v.trim().isEmpty())
+            return "is empty";
+        if (!value.regex().isEmpty() && !Pattern.matches(value.regex(), v))
+            return "doesn't match " + value.regex();
+        double d;
+        switch (type.getKind()) {
+            case BOOLEAN: return null;
+            case INT:     d = Integer.valueOf(v); break;
+            case LONG:    d = Long.valueOf(v); break;
+            case DOUBLE:  d = Double.valueOf(v); break;
+            default:      d = v.length();
+        }
+        return d < value.min() || d > value.max() ? "not in [" + value.min() + ", " + value.max() + "]" : null;
+    }
+
+    private void error(String msg, Element e) {
+        processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, msg, e);
+    }
+
+    private void note(String msg, Element e) {
+        processingEnv.getMessager().printMessage(Diagnostic.Kind.NOTE, msg, e);
+    }
+}
@@ -0,0 +1,200 @@
+package de.codecoverage.config;
+
+import java.lang.management.ClassLoadingMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.ThreadMXBean;
+import java.lang.ref.WeakReference;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.management.ObjectName;
+
+import de.codecoverage.config.ConfigManager.Configurable;
+import de.codecoverage.config.ConfigManager.ConfigurationValue;
+import de.codecoverage.config.ConfigManager.Options;
+
+//
+// Redeploy test: the ConfigManager is loaded once (like a library of the application server), each
+// "deployment" is a new class loader with its own config interface and a ConfigManager.create() ...
+// close() cycle: get(), a listener, update() (the watcher and the listener threads are running),
+// after close() the manager must refuse to be used.
+// After the undeploys every deployment class loader must be collected, and the threads, the
+// metaspace and the loaded classes must be back to the baseline of the first cycle.
+//
+// java -cp bin de.codecoverage.config.RedeployDriver [cycles, default 100]
+//
+public class RedeployDriver {
+    private static final String APP_PREFIX = RedeployDriver.class.getName() + "$App";
+
+    @Configurable(filePath = "@REDEPLOY_CONFIG@")
+    public interface AppConfig {
+         @ConfigurationValue(key = "app.counter", defaultValue = "0")
+         long counter();
+
+         @ConfigurationValue(key = "app.name", defaultValue = "app")
+         String name();
+    }
+
+    // the deployment, loaded by a new AppLoader per cycle
+    public static class App implements Callable<Long> {
+    	@Override
+    	public Long call() throws Exception {
+    		try (ConfigManager.Instance config = ConfigManager.create(new Options().name("redeploy").classLoader(App.class.getClassLoader()))) {
+    			config.registerMBean();
+    			AppConfig first = config.get(AppConfig.class);
+    			CountDownLatch changed = new CountDownLatch(1);
+    			config.addListener(AppConfig.class, (o, n, keys) -> changed.countDown());
+    			config.update(AppConfig.class, "app.counter", Long.toString(first.counter() + 1));
+    			if (!changed.await(10, TimeUnit.SECONDS))
+    				throw new IllegalStateException("listener not called");
+    			AppConfig config2 = config.get(AppConfig.class);
+    			if (config2.getClass().getClassLoader().getParent() != App.class.getClassLoader())
+    				throw new IllegalStateException("generated class not defined below the deployment: " + config2.getClass().getClassLoader().getParent());
+    			long counter = config2.counter();
+    			// a closed manager has no watcher, it must not serve (stale) instances
+    			config.close();
+    			assertClosed(() -> config.get(AppConfig.class));
+    			assertClosed(() -> config.update(AppConfig.class, "app.counter", "0"));
+    			assertClosed(() -> config.addListener(AppConfig.class, (o, n, keys) -> { }));
+    			assertClosed(() -> config.tenants(AppConfig.class));
+    			if (config2.counter() != counter)
+    				throw new IllegalStateException("returned instance changed by close()");
+    			return counter;
+    		}
+    	}
+
+    	private static void assertClosed(Runnable use) {
+    		try {
+    			use.run();
+    		} catch (IllegalStateException e) {
+    			return;
+    		}
+    		throw new IllegalStateException("closed manager still in use");
+    	}
+    }
+
+    // child first for the App classes, everything else (the ConfigManager) from the parent
+    private static final class AppLoader extends URLClassLoader {
+    	private AppLoader(URL[] urls, ClassLoader parent) {
+    		super(urls, parent);
+    	}
+
+    	@Override
+    	protected Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
+    		if (!name.startsWith(APP_PREFIX))
+    			return super.loadClass(name, resolve);
+    		synchronized (getClassLoadingLock(name)) {
+    			Class<?> c = findLoadedClass(name);
+    			if (c == null)
+    				c = findClass(name);
+    			if (resolve)
+    				resolveClass(c);
+    			return c;
+    		}
+    	}
+    }
+
+	public static void main(String... args) throws Exception {
+		int cycles = args.length > 0 ? Integer.parseInt(args[0]) : 100;
+		Logger.getLogger(ConfigManager.class.getName()).setLevel(Level.SEVERE);
+		Path dir = Files.createTempDirectory("redeploy");
+		Path file = dir.resolve("app.properties");
+		URL[] classPath = { RedeployDriver.class.getProtectionDomain().getCodeSource().getLocation() };
+		try {
+			Files.write(file, Arrays.asList("app.counter=0"));
+			System.setProperty("REDEPLOY_CONFIG", file.toString());
+			ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+			ClassLoadingMXBean classLoading = ManagementFactory.getClassLoadingMXBean();
+
+			// the first cycle loads the JDK classes (watch service, JMX, lambdas), then the baseline
+			int startThreads = threads.getThreadCount();
+			deploy(classPath, 1);
+			gc();
+			int baseThreads = awaitThreads(threads, startThreads);
+			long baseMetaspace = metaspace();
+			long baseClasses = classLoading.getLoadedClassCount();
+
+			List<WeakReference<ClassLoader>> loaders = new ArrayList<>();
+			for (int n = 2; n <= cycles + 1; n++)
+				loaders.add(deploy(classPath, n));
+
+			gc();
+			int alive = 0;
+			for (WeakReference<ClassLoader> loader : loaders) {
+				if (loader.get() != null)
+					alive++;
+			}
+			int liveThreads = awaitThreads(threads, baseThreads);
+			long metaspace = metaspace();
+			long classes = classLoading.getLoadedClassCount();
+			System.out.println(String.format(Locale.ROOT, "cycles=%d deployment loaders alive=%d threads=%d (baseline %d)", cycles, alive, liveThreads, baseThreads));
+			System.out.println(String.format(Locale.ROOT, "metaspace=%dKB (baseline %dKB) loaded classes=%d (baseline %d) unloaded=%d",
+					metaspace / 1024, baseMetaspace / 1024, classes, baseClasses, classLoading.getUnloadedClassCount()));
+
+			if (alive != 0)
+				throw new IllegalStateException(alive + " of " + cycles + " deployment class loaders not collected");
+			if (liveThreads > baseThreads)
+				throw new IllegalStateException("thread leak: " + liveThreads + " threads, baseline " + baseThreads);
+			if (metaspace > baseMetaspace + 2 * 1024 * 1024 + baseMetaspace / 10)
+				throw new IllegalStateException("metaspace leak: " + metaspace + " bytes, baseline " + baseMetaspace);
+			if (classes > baseClasses + 200)
+				throw new IllegalStateException("class leak: " + classes + " loaded classes, baseline " + baseClasses);
+			if (!ManagementFactory.getPlatformMBeanServer().queryNames(new ObjectName("de.codecoverage.config:type=ConfigManager,*"), null).isEmpty())
+				throw new IllegalStateException("MBean still registered");
+			System.out.println("Okay");
+		} finally {
+			Files.deleteIfExists(file);
+			Files.delete(dir);
+		}
+	}
+
+	// one deploy/undeploy cycle, returns the undeployed class loader
+	private static WeakReference<ClassLoader> deploy(URL[] classPath, long counter) throws Exception {
+		try (AppLoader loader = new AppLoader(classPath, RedeployDriver.class.getClassLoader())) {
+			Class<?> app = loader.loadClass(App.class.getName());
+			if (app == App.class)
+				throw new IllegalStateException("App not loaded by the deployment loader");
+			@SuppressWarnings("unchecked")
+			Callable<Long> deployment = (Callable<Long>) app.getDeclaredConstructor().newInstance();
+			long value = deployment.call();
+			if (value != counter)
+				throw new IllegalStateException("cycle " + counter + " read " + value);
+			return new WeakReference<>(loader);
+		}
+	}
+
+	// the listener threads end after close() asynchronously
+	private static int awaitThreads(ThreadMXBean threads, int expected) throws InterruptedException {
+		long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+		while (threads.getThreadCount() > expected && System.nanoTime() < end)
+			Thread.sleep(50);
+		return threads.getThreadCount();
+	}
+
+	private static void gc() throws InterruptedException {
+		for (int i = 0; i < 3; i++) {
+			System.gc();
+			Thread.sleep(50);
+		}
+	}
+
+	private static long metaspace() {
+		for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+			if ("Metaspace".equals(pool.getName()))
+				return pool.getUsage().getUsed();
+		}
+		return 0;
+	}
+}
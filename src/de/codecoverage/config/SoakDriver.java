@@ -0,0 +1,241 @@
+package de.codecoverage.config;
+
+import java.lang.management.ClassLoadingMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.function.ToLongFunction;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import de.codecoverage.config.ConfigManager.Configurable;
+import de.codecoverage.config.ConfigManager.ConfigurationGroup;
+import de.codecoverage.config.ConfigManager.ConfigurationValue;
+
+//
+// Soak test: many reloads with changing values in one JVM. Every reload generates new classes
+// (and a new ByteArrayLoader), the old ones must be unloaded. Per window of reloads it prints
+// metaspace, live classes, used heap (after GC, i.e. retained by the CACHE and everything else)
+// and the reload latency percentiles. Fails if one of these has an upward trend.
+// Every n-th reload writes the file directly instead of update(), reloaded by the watcher
+// (watch events, the check for the writes of update() and the registration of the directory).
+// Ten times per window the file moves to a new directory and name: the state the manager keeps per
+// interface and per file (history, written files, loaders, watched directories) must stay bounded.
+//
+// java -cp bin de.codecoverage.config.SoakDriver [reloads, default 1000000] [reloads per sample, default 10000]
+//                                                [every n-th reload by the watcher, default 100]
+//
+public class SoakDriver {
+    private static final double WARMUP = 0.2; // the first samples are ignored (JIT, first class loading)
+    private static final int HISTORY = 8;
+
+    @Configurable(filePath = "@SOAK_CONFIG@")
+    public interface SoakConfig {
+         @ConfigurationValue(key = "soak.counter", defaultValue = "0")
+         long getCounter();
+
+         @ConfigurationValue(key = "soak.name", defaultValue = "soak")
+         String getName();
+
+         @ConfigurationValue(key = "soak.ratio", defaultValue = "0.5")
+         double getRatio();
+
+         @ConfigurationGroup(prefix = "soak.db.")
+         SoakDb db();
+    }
+
+    public interface SoakDb {
+         @ConfigurationValue(key = "poolSize", defaultValue = "8")
+         int poolSize();
+
+         @ConfigurationValue(key = "url", defaultValue = "jdbc:soak?name=${soak.name}")
+         String url();
+    }
+
+    // one row per sample
+    private static final class Sample {
+    	private final long reloads;
+    	private final long metaspace;
+    	private final long liveClasses;
+    	private final long unloadedClasses;
+    	private final long heap;
+    	private final long p50;
+    	private final long p99;
+    	private final long max;
+    	private final Map<String, Integer> state;
+
+    	private Sample(long reloads, long metaspace, long liveClasses, long unloadedClasses, long heap, long[] latencies, Map<String, Integer> state) {
+    		this.reloads = reloads;
+    		this.metaspace = metaspace;
+    		this.liveClasses = liveClasses;
+    		this.unloadedClasses = unloadedClasses;
+    		this.heap = heap;
+    		Arrays.sort(latencies);
+    		this.p50 = latencies[latencies.length / 2];
+    		this.p99 = latencies[(int) (latencies.length * 0.99)];
+    		this.max = latencies[latencies.length - 1];
+    		this.state = state;
+    	}
+
+    	@Override
+    	public String toString() {
+    		return String.format(Locale.ROOT, "%10d %10d %8d %10d %10d %8d %8d %10d  %s",
+    				reloads, metaspace / 1024, liveClasses, unloadedClasses, heap / 1024, p50 / 1000, p99 / 1000, max / 1000, state.values());
+    	}
+    }
+
+	public static void main(String... args) throws Exception {
+		long reloads = args.length > 0 ? Long.parseLong(args[0]) : 1_000_000;
+		int window = args.length > 1 ? Integer.parseInt(args[1]) : 10_000;
+		int byWatcher = args.length > 2 ? Integer.parseInt(args[2]) : 100;
+		// a warning per reload ("Configuration changes detected") would flood the log
+		Logger.getLogger(ConfigManager.class.getName()).setLevel(Level.SEVERE);
+		int moveEvery = Math.max(1, window / 10);
+		Path root = Files.createTempDirectory("soak");
+		Path file = move(root, 0);
+		try {
+			Files.write(file, Arrays.asList("soak.counter=0"));
+			ConfigManager.setHistorySize(HISTORY);
+			SoakConfig first = ConfigManager.get(SoakConfig.class);
+			if (first.getCounter() != 0)
+				throw new IllegalArgumentException("initial value wrong");
+
+			ClassLoadingMXBean classLoading = ManagementFactory.getClassLoadingMXBean();
+			List<Sample> samples = new ArrayList<>();
+			long[] latencies = new long[window];
+			Map<String, String> values = new HashMap<>();
+			System.out.println("   reloads  metaspace[KB]  classes  unloaded    heap[KB]  p50[us]  p99[us]    max[us]  " + ConfigManager.stateSizes().keySet());
+			for (long n = 1; n <= reloads; n++) {
+				values.put("soak.counter", Long.toString(n));
+				values.put("soak.name", "soak" + (n % 97));
+				values.put("soak.db.poolSize", Long.toString(n % 64));
+				long start = System.nanoTime();
+				SoakConfig config;
+				if (n % byWatcher == 0) {
+					write(file, values);
+					config = awaitReload(n);
+				} else if (n % moveEvery == moveEvery / 2) { // between the writes for the watcher
+					Path previous = file;
+					file = move(root, n);
+					ConfigManager.update(SoakConfig.class, values); // the reload reads the new file
+					config = ConfigManager.get(SoakConfig.class);
+					Files.delete(previous);
+					Files.delete(previous.getParent());
+				} else {
+					ConfigManager.update(SoakConfig.class, values);
+					config = ConfigManager.get(SoakConfig.class);
+				}
+				latencies[(int) ((n - 1) % window)] = System.nanoTime() - start;
+
+				if (config.getCounter() != n || config.db().poolSize() != n % 64 || !config.db().url().endsWith("soak" + (n % 97))) {
+					throw new IllegalArgumentException("reload " + n + " not published: " + config.getCounter());
+				}
+				if (n % window == 0) {
+					System.gc();
+					System.gc(); // unload the classes of the replaced instances
+					Sample s = new Sample(n, metaspace(), classLoading.getLoadedClassCount(), classLoading.getUnloadedClassCount(),
+							ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed(), latencies.clone(), ConfigManager.stateSizes());
+					samples.add(s);
+					System.out.println(s);
+					checkState(s);
+				}
+			}
+			check(samples);
+			System.out.println("Okay");
+		} finally {
+			Files.deleteIfExists(file);
+			Files.delete(file.getParent());
+			Files.delete(root);
+			ConfigManager.shutdown();
+		}
+	}
+
+	// a new directory and file name, the SOAK_CONFIG placeholder is bound to it
+	private static Path move(Path root, long n) throws IOException {
+		Path file = Files.createDirectory(root.resolve("d" + n)).resolve("soak" + n + ".properties");
+		System.setProperty("SOAK_CONFIG", file.toString());
+		return file;
+	}
+
+	// one interface bound to one file: the history is full, everything else has at most one entry
+	private static void checkState(Sample s) {
+		s.state.forEach((name, size) -> {
+			int bound = "history".equals(name) ? HISTORY : 1;
+			if (size > bound)
+				throw new IllegalArgumentException("Unbounded state of the manager after " + s.reloads + " reloads: " + name + "=" + size + " > " + bound);
+		});
+	}
+
+	// like an editor or a deployment: a temp file renamed to the file
+	private static void write(Path file, Map<String, String> values) throws IOException {
+		List<String> lines = new ArrayList<>();
+		values.forEach((k, v) -> lines.add(k + "=" + v));
+		Path tmp = Files.createTempFile(file.getParent(), ".soak", ".tmp");
+		Files.write(tmp, lines);
+		Files.move(tmp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+	}
+
+	private static SoakConfig awaitReload(long counter) throws InterruptedException {
+		long end = System.nanoTime() + 30_000_000_000L;
+		SoakConfig config;
+		while ((config = ConfigManager.get(SoakConfig.class)).getCounter() != counter) {
+			if (System.nanoTime() > end)
+				throw new IllegalArgumentException("file write " + counter + " not reloaded by the watcher: " + config.getCounter());
+			Thread.sleep(0, 100_000);
+		}
+		return config;
+	}
+
+	private static long metaspace() {
+		for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+			if ("Metaspace".equals(pool.getName()))
+				return pool.getUsage().getUsed();
+		}
+		return 0;
+	}
+
+	private static void check(List<Sample> samples) {
+		int from = (int) (samples.size() * WARMUP);
+		if (samples.size() - from < 3) {
+			System.out.println("Too few samples for a trend: " + samples.size());
+			return;
+		}
+		List<Sample> measured = samples.subList(from, samples.size());
+		checkTrend("metaspace", measured, s -> s.metaspace, 2 * 1024 * 1024, 0.1);
+		checkTrend("live classes", measured, s -> s.liveClasses, 200, 0.1);
+		checkTrend("heap", measured, s -> s.heap, 4 * 1024 * 1024, 0.2);
+		checkTrend("p50 reload latency", measured, s -> s.p50, 0, 0.5);
+		Sample last = samples.get(samples.size() - 1);
+		if (last.unloadedClasses == 0)
+			throw new IllegalArgumentException("no generated class was unloaded");
+	}
+
+	// least squares slope over the samples, fails if the growth over the run exceeds the tolerance:
+	// absolute plus relative to the first value, for the noise of GC and JIT
+	private static void checkTrend(String name, List<Sample> samples, ToLongFunction<Sample> metric, long absolute, double relative) {
+		int n = samples.size();
+		double sumX = 0, sumY = 0, sumXY = 0, sumXX = 0;
+		for (int i = 0; i < n; i++) {
+			double y = metric.applyAsLong(samples.get(i));
+			sumX += i;
+			sumY += y;
+			sumXY += i * y;
+			sumXX += (double) i * i;
+		}
+		double slope = (n * sumXY - sumX * sumY) / (n * sumXX - sumX * sumX);
+		double growth = slope * (n - 1);
+		double allowed = absolute + relative * metric.applyAsLong(samples.get(0));
+		System.out.println(String.format(Locale.ROOT, "%-20s growth %.0f (allowed %.0f)", name, growth, allowed));
+		if (growth > allowed)
+			throw new IllegalArgumentException("Upward trend of " + name + ": " + growth + " > " + allowed);
+	}
+}
@@ -0,0 +1,219 @@
+package de.codecoverage.config;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
+
+import de.codecoverage.config.ConfigManager.Configurable;
+import de.codecoverage.config.ConfigManager.ConfigurationGroup;
+import de.codecoverage.config.ConfigManager.ConfigurationValue;
+
+//
+// Stress test: hundreds of reader threads call get() and the accessors while a writer changes the
+// file all the time, by update() and by writing the file (the watcher reloads). Checks:
+//  - the first get() of racing threads generates the class only once (StressFirst, its file doesn't change)
+//  - no stale read: after update() has returned, get() never returns an older generation
+//  - every instance is consistent (all keys of one generation)
+//  - no exception in the readers, the writer and the watcher, also while shutdown() runs
+// and reports the throughput of get() under contention. The readers run until the writer has made
+// the minimum number of changes (with many readers on few cores the writer gets little cpu time),
+// the run fails if it takes more than 20 times the seconds.
+//
+// java -cp bin de.codecoverage.config.StressDriver [readers, default 200] [seconds, default 10] [minimum changes, default 500]
+//
+public class StressDriver {
+
+    @Configurable(filePath = "@STRESS_CONFIG@")
+    public interface StressConfig {
+         @ConfigurationValue(key = "stress.generation", defaultValue = "0")
+         long generation();
+
+         @ConfigurationValue(key = "stress.name", defaultValue = "g0")
+         String name();
+
+         @ConfigurationGroup(prefix = "stress.group.")
+         StressGroup group();
+    }
+
+    public interface StressGroup {
+         @ConfigurationValue(key = "generation", defaultValue = "0")
+         int generation();
+    }
+
+    @Configurable(filePath = "@STRESS_FIRST_CONFIG@")
+    public interface StressFirst {
+         @ConfigurationValue(key = "stress.generation", defaultValue = "0")
+         long generation();
+    }
+
+    // counts the class generations (one warning each) and the severe errors of the ConfigManager
+    private static final class Counter extends Handler {
+    	private final ConcurrentHashMap<String, AtomicInteger> generations = new ConcurrentHashMap<>(); // by file
+    	private final AtomicInteger severe = new AtomicInteger();
+    	private final AtomicReference<String> firstSevere = new AtomicReference<>();
+
+    	@Override
+    	public void publish(LogRecord r) {
+    		if (r.getLevel() == Level.SEVERE) {
+    			severe.incrementAndGet();
+    			firstSevere.compareAndSet(null, r.getMessage());
+    		} else if (r.getMessage() != null && r.getMessage().startsWith("!Configuration changes detected! : ")) {
+    			String file = r.getMessage().substring("!Configuration changes detected! : ".length());
+    			generations.computeIfAbsent(file, f -> new AtomicInteger()).incrementAndGet();
+    		}
+    	}
+
+    	@Override
+    	public void flush() {
+    	}
+
+    	private int generations(String file) {
+    		AtomicInteger n = generations.get(file);
+    		return n == null ? 0 : n.get();
+    	}
+
+    	@Override
+    	public void close() {
+    	}
+    }
+
+	public static void main(String... args) throws Exception {
+		int readers = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+		int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+		int minChanges = args.length > 2 ? Integer.parseInt(args[2]) : 500;
+		Logger log = Logger.getLogger(ConfigManager.class.getName());
+		Counter counter = new Counter();
+		log.setUseParentHandlers(false);
+		log.addHandler(counter);
+
+		Path dir = Files.createTempDirectory("stress");
+		Path file = dir.resolve("stress.properties");
+		Path firstFile = dir.resolve("first.properties");
+		try {
+			write(file, 0);
+			write(firstFile, 0);
+			System.setProperty("STRESS_CONFIG", file.toString());
+			System.setProperty("STRESS_FIRST_CONFIG", firstFile.toString());
+
+			AtomicLong published = new AtomicLong(); // the generation of the last update() which returned
+			AtomicReference<Throwable> failure = new AtomicReference<>();
+			LongAdder gets = new LongAdder();
+			CountDownLatch start = new CountDownLatch(1);
+			AtomicBoolean stop = new AtomicBoolean();
+			long begin = System.nanoTime();
+			long end = begin + seconds * 1_000_000_000L;
+			long deadline = begin + 20 * seconds * 1_000_000_000L;
+			StressFirst[] first = new StressFirst[readers];
+
+			Thread[] threads = new Thread[readers];
+			for (int i = 0; i < readers; i++) {
+				int id = i;
+				threads[i] = new Thread(() -> {
+					try {
+						start.await();
+						first[id] = ConfigManager.get(StressFirst.class);
+						long n = 0;
+						while ((n++ & 0xFF) != 0 || !stop.get()) {
+							if ((n & 0xFF) == 0)
+								Thread.yield(); // the writer must get some cpu time, even with more readers than cores
+							long before = published.get();
+							StressConfig config = ConfigManager.get(StressConfig.class);
+							long generation = config.generation();
+							if (generation < before)
+								throw new IllegalStateException("stale read: generation " + generation + " after " + before + " was published");
+							if (!config.name().equals("g" + generation) || config.group().generation() != (int) generation)
+								throw new IllegalStateException("inconsistent instance: " + generation + " " + config.name() + " " + config.group().generation());
+							gets.increment();
+						}
+					} catch (Throwable t) {
+						failure.compareAndSet(null, t);
+					}
+				}, "reader-" + i);
+				threads[i].start();
+			}
+
+			start.countDown();
+			long updates = 0;
+			long generation = 0;
+			Map<String, String> values = new HashMap<>();
+			while ((System.nanoTime() < end || generation < minChanges) && failure.get() == null) {
+				if (System.nanoTime() > deadline) {
+					stop.set(true);
+					throw new IllegalStateException("writer starved: " + generation + " of " + minChanges + " changes in " + 20 * seconds + " seconds");
+				}
+				generation++;
+				if (generation % 10 == 0) {
+					write(file, generation); // reloaded by the watcher
+					Thread.sleep(1);
+				} else {
+					values.put("stress.generation", Long.toString(generation));
+					values.put("stress.name", "g" + generation);
+					values.put("stress.group.generation", Long.toString(generation));
+					ConfigManager.update(StressConfig.class, values);
+					published.set(generation);
+					updates++;
+				}
+			}
+			stop.set(true);
+			double elapsed = (System.nanoTime() - begin) / 1e9;
+			for (Thread t : threads)
+				t.join();
+			if (failure.get() != null)
+				throw new IllegalStateException("reader failed", failure.get());
+
+			for (StressFirst f : first) {
+				if (f != first[0])
+					throw new IllegalStateException("first get() returned different instances");
+			}
+			if (counter.generations("@STRESS_FIRST_CONFIG@") != 1)
+				throw new IllegalStateException("duplicate generations on first get(): " + counter.generations("@STRESS_FIRST_CONFIG@"));
+			// at most once per change, the watcher may skip intermediate files
+			int generated = counter.generations("@STRESS_CONFIG@");
+			if (generated > generation + 1)
+				throw new IllegalStateException("duplicate generations: " + generated + " for " + generation + " changes");
+
+			// shutdown while the watcher reloads
+			write(file, generation + 1);
+			ConfigManager.shutdown();
+			Thread.sleep(200);
+			if (counter.severe.get() != 0)
+				throw new IllegalStateException(counter.severe.get() + " severe errors, first: " + counter.firstSevere.get());
+
+			System.out.println(String.format(Locale.ROOT, "readers=%d seconds=%.1f updates=%d file writes=%d generated classes=%d",
+					readers, elapsed, updates, generation / 10, generated));
+			System.out.println(String.format(Locale.ROOT, "get() throughput: %.0f ops/s (%.0f per reader)",
+					gets.sum() / elapsed, gets.sum() / elapsed / readers));
+			System.out.println("Okay");
+		} finally {
+			log.removeHandler(counter);
+			Files.deleteIfExists(file);
+			Files.deleteIfExists(firstFile);
+			Files.delete(dir);
+		}
+	}
+
+	// write to a temp file and rename it, the watcher reloads it
+	private static void write(Path file, long generation) throws IOException {
+		List<String> lines = Arrays.asList("stress.generation=" + generation, "stress.name=g" + generation, "stress.group.generation=" + generation);
+		Path tmp = Files.createTempFile(file.getParent(), ".stress", ".tmp");
+		Files.write(tmp, lines);
+		Files.move(tmp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+	}
+}
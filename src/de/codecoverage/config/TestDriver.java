@@ -3,14 +3,48 @@ package de.codecoverage.config;
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.KeyStore;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
+
+import javax.crypto.KeyGenerator;
+import javax.management.ObjectName;
 
 import de.codecoverage.config.ConfigManager.Configurable;
+import de.codecoverage.config.ConfigManager.ConfigurationGroup;
 import de.codecoverage.config.ConfigManager.ConfigurationValue;
+import de.codecoverage.config.ConfigManager.RolloutFlag;
+import de.codecoverage.config.TestDriverPrebuilt.TESTConfigPrebuilt;
+import de.codecoverage.config.TestDriverPrebuilt.TESTConfigPrebuiltOverride;
 
 //
 // Test driver
@@ -58,6 +92,268 @@ public class TestDriver {
          String getString();
     }
  
+    @Configurable(filePath = PATH_CONFIG2)
+    public interface TESTConfigInterpolation {
+         @ConfigurationValue(key = "test.interpolation.base", defaultValue = "http://localhost:8080")
+         String getBase();
+
+         @ConfigurationValue(key = "test.interpolation.url", defaultValue = "${test.interpolation.base}/api?flag=${TEST1_b}")
+         String getUrl();
+
+         @ConfigurationValue(key = "test.interpolation.nameUrl", defaultValue = "${test.interpolation.base}/api?name=${test.db.name}")
+         String getNameUrl();
+
+         @ConfigurationValue(key = "test.interpolation.escaped", defaultValue = "echo $${HOME} ${test.db.name}")
+         String getEscaped();
+
+         @ConfigurationValue(key = "test.interpolation.env", defaultValue = "${env:PATH}")
+         String getEnv();
+
+         @ConfigurationValue(key = "test.db.name", defaultValue = "duckhawk")
+         String getName();
+    }
+
+    @Configurable(filePath = PATH_CONFIG2)
+    public interface TESTConfigFailCycle {
+         @ConfigurationValue(key = "test.cycle.a", defaultValue = "${test.cycle.b}")
+         String getA();
+
+         @ConfigurationValue(key = "test.cycle.b", defaultValue = "x${test.cycle.a}")
+         String getB();
+    }
+ 
+    public interface TESTConfigDb {
+         @ConfigurationValue(key = "poolSize", defaultValue = "8")
+         int poolSize();
+
+         @ConfigurationValue(key = "url", defaultValue = "jdbc:test?pool=${test.db.poolSize}")
+         String url();
+    }
+
+    @Configurable(filePath = PATH_CONFIG2)
+    public interface TESTConfigNested {
+         @ConfigurationGroup(prefix = "test.db.")
+         TESTConfigDb db();
+
+         @ConfigurationValue(key = "TEST2_s", defaultValue = "String")
+         String getString();
+    }
+ 
+    @Configurable(filePath = "@LARGE_STRING_CONFIG@")
+    public interface TESTConfigLargeString {
+         @ConfigurationValue(key = "test.large", defaultValue = "")
+         String getLarge();
+    }
+ 
+    @Configurable(filePath = "@TENANT_CONFIG@")
+    public interface TESTConfigTenant {
+         @ConfigurationValue(key = "test.tenant.name", defaultValue = "none")
+         String getName();
+
+         @ConfigurationValue(key = "test.tenant.limit", defaultValue = "-281474976710655")
+         long getLimit();
+
+         @ConfigurationValue(key = "test.tenant.ratio", defaultValue = "0.5")
+         double getRatio();
+
+         @RolloutFlag(key = "test.tenant.rollout", defaultPercent = 30)
+         boolean rollout(String id);
+
+         @ConfigurationGroup(prefix = "test.tenant.db.")
+         TESTConfigFormatDb db();
+    }
+ 
+    @Configurable(filePath = "@VALIDATED_CONFIG@")
+    public interface TESTConfigValidated {
+         @ConfigurationValue(key = "validated.port", defaultValue = "80", min = 1, max = 65535)
+         int getPort();
+
+         @ConfigurationValue(key = "validated.name", defaultValue = "none", regex = "[a-z]+", nonEmpty = true)
+         String getName();
+    }
+
+    @Configurable(filePath = "@VALIDATED_CONFIG@")
+    public interface TESTConfigValidatedSize {
+         @ConfigurationValue(key = "validated.size", defaultValue = "1", min = 1)
+         long getSize();
+    }
+
+    @Configurable(filePath = "@COUNTED_CONFIG@")
+    public interface TESTConfigCounted {
+         @ConfigurationValue(key = "counted.double", defaultValue = "1.5")
+         double getDouble();
+
+         @ConfigurationValue(key = "counted.name", defaultValue = "counted")
+         String getName();
+
+         @ConfigurationGroup(prefix = "test.db.")
+         TESTConfigDb db();
+    }
+
+    @Configurable(filePath = "@ROLLOUT_CONFIG@")
+    public interface TESTConfigRollout {
+         @RolloutFlag(key = "rollout.newCheckout", defaultPercent = 5)
+         boolean newCheckout(long userId);
+
+         @RolloutFlag(key = "rollout.newSearch")
+         boolean newSearch(String userId);
+    }
+
+    @Configurable(filePath = "@HISTORY_CONFIG@")
+    public interface TESTConfigHistory {
+         @ConfigurationValue(key = "history.limit", defaultValue = "10")
+         int limit();
+    }
+
+    @Configurable(filePath = "@RENAMED_CONFIG@")
+    public interface TESTConfigRenamed {
+         @ConfigurationValue(key = "renamed.value", defaultValue = "0")
+         int value();
+    }
+
+    @Configurable(filePath = "@ISOLATED_A_CONFIG@")
+    public interface TESTConfigIsolatedA {
+         @ConfigurationValue(key = "isolated.value", defaultValue = "0")
+         int value();
+    }
+
+    @Configurable(filePath = "@ISOLATED_B_CONFIG@")
+    public interface TESTConfigIsolatedB {
+         @ConfigurationValue(key = "isolated.value", defaultValue = "0")
+         int value();
+    }
+
+    @Configurable(filePath = "@LISTENER_CONFIG@")
+    public interface TESTConfigListener {
+         @ConfigurationValue(key = "listener.value", defaultValue = "0")
+         int value();
+    }
+
+    @Configurable(filePath = "@SHARED_CONFIG@")
+    public interface TESTConfigShared1 {
+         @ConfigurationValue(key = "shared.one", defaultValue = "1")
+         int one();
+
+         @ConfigurationGroup(prefix = "shared.group.")
+         TESTConfigFormatDb db();
+    }
+
+    @Configurable(filePath = "@SHARED_CONFIG@")
+    public interface TESTConfigShared2 {
+         @ConfigurationValue(key = "shared.two", defaultValue = "2")
+         int two();
+    }
+
+    // the same file as TESTConfigShared1 by another placeholder
+    @Configurable(filePath = "@SHARED_ALIAS_CONFIG@")
+    public interface TESTConfigShared3 {
+         @ConfigurationValue(key = "shared.three", defaultValue = "3")
+         int three();
+    }
+
+    // the tenant is the file name, e.g. app.json or app.yaml
+    @Configurable(filePath = "@FORMAT_CONFIG@")
+    public interface TESTConfigFormat {
+         @ConfigurationValue(key = "server.port", defaultValue = "80")
+         int port();
+
+         @ConfigurationValue(key = "server.name", defaultValue = "")
+         String name();
+
+         @ConfigurationValue(key = "server.hosts.1", defaultValue = "")
+         String secondHost();
+
+         @ConfigurationValue(key = "server.secure", defaultValue = "false")
+         boolean secure();
+
+         @ConfigurationValue(key = "motd", defaultValue = "")
+         String motd();
+
+         @ConfigurationGroup(prefix = "db.")
+         TESTConfigFormatDb db();
+    }
+
+    public interface TESTConfigFormatDb {
+         @ConfigurationValue(key = "url", defaultValue = "")
+         String url();
+
+         @ConfigurationValue(key = "pool.size", defaultValue = "1")
+         int poolSize();
+    }
+
+    @Configurable(filePath = "@DEFERRED_CONFIG@")
+    public interface TESTConfigDeferred {
+         @ConfigurationValue(key = "deferred.mode", defaultValue = "default")
+         String mode();
+
+         @ConfigurationValue(key = "deferred.threads", defaultValue = "1")
+         int threads();
+    }
+
+    @Configurable(filePath = "@BLOCKING_CONFIG@")
+    public interface TESTConfigBlocking {
+         @ConfigurationValue(key = "blocking.value", defaultValue = "none")
+         String value();
+    }
+
+    @Configurable(filePath = "@SECRET_CONFIG@")
+    public interface TESTConfigSecret {
+         @ConfigurationValue(key = "secret.password", defaultValue = "")
+         String password();
+
+         @ConfigurationValue(key = "secret.pin", defaultValue = "1000", min = 1000, max = 9999)
+         int pin();
+
+         @ConfigurationValue(key = "secret.token", defaultValue = "BASE64(dG9rZW4=)")
+         String token();
+    }
+
+	// a test of a config interface bound to a temp file or directory, see withConfigFile()
+	private interface ConfigTest {
+		void run(Path p) throws Exception;
+	}
+
+	// the fixture of the file based tests: a temp file with the lines, the placeholder property of the
+	// interface bound to it, deleted afterwards
+	private static void withConfigFile(String property, List<String> lines, ConfigTest test) throws Exception {
+		Path p = Files.createTempFile(property.toLowerCase(Locale.ROOT), ".properties");
+		try {
+			Files.write(p, lines);
+			System.setProperty(property, p.toString());
+			test.run(p);
+		} finally {
+			Files.delete(p);
+		}
+	}
+
+	// the same for the interfaces bound to a file name pattern: a temp directory, the property bound to
+	// the pattern in it, the test gets the directory, all files in it are deleted afterwards
+	private static void withConfigDir(String property, String pattern, ConfigTest test) throws Exception {
+		Path dir = Files.createTempDirectory(property.toLowerCase(Locale.ROOT));
+		try {
+			System.setProperty(property, dir.resolve(pattern).toString());
+			test.run(dir);
+		} finally {
+			try (DirectoryStream<Path> files = Files.newDirectoryStream(dir)) {
+				for (Path file : files)
+					Files.delete(file);
+			}
+			Files.delete(dir);
+		}
+	}
+
+	// write to a temp file and rename it (ENTRY_CREATE), like update() and most config agents
+	private static void writeAtomic(Path p, List<String> lines) throws IOException {
+		Path tmp = Files.createTempFile(p.toAbsolutePath().getParent(), ".testdriver", ".tmp");
+		try (BufferedWriter bw = Files.newBufferedWriter(tmp)) {
+			for (String line : lines) {
+				bw.write(line);
+				bw.newLine();
+			}
+		}
+		Files.move(tmp, p, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+	}
+
 	public static void changeOrAddContent(String path, String key, String value) {
 		Properties prop = new Properties();
 		Path p = Paths.get(path);
@@ -104,8 +400,652 @@ public class TestDriver {
 		}
 	}
 
+	// a file replaced by a rename is seen by the watcher (ENTRY_CREATE), the in-place writes are ENTRY_MODIFY
+	private static void testAtomicRename() throws Exception {
+		withConfigFile("RENAMED_CONFIG", Collections.emptyList(), p -> {
+			ConfigManager.get(TESTConfigRenamed.class);
+			for (int i = 1; i <= 3; i++) {
+				writeAtomic(p, Arrays.asList("renamed.value=" + i));
+				long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+				while (ConfigManager.get(TESTConfigRenamed.class).value() != i && System.nanoTime() < end)
+					Thread.sleep(10);
+				if (ConfigManager.get(TESTConfigRenamed.class).value() != i)
+					throw new IllegalArgumentException("renamed file not reloaded: " + i);
+			}
+		});
+	}
+
+	// the watcher reloads only the changed file, an invalid file doesn't block the change of another one
+	private static void testReloadIsolation() throws Exception {
+		withConfigFile("ISOLATED_A_CONFIG", Collections.emptyList(), a -> withConfigFile("ISOLATED_B_CONFIG", Collections.emptyList(), b -> {
+			ConfigManager.get(TESTConfigIsolatedA.class);
+			ConfigManager.get(TESTConfigIsolatedB.class);
+			writeAtomic(a, Arrays.asList("isolated.value=typo"));
+			Thread.sleep(300); // propagate change
+			if (ConfigManager.get(TESTConfigIsolatedA.class).value() != 0)
+				throw new IllegalArgumentException("invalid file published");
+			writeAtomic(b, Arrays.asList("isolated.value=2"));
+			long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+			while (ConfigManager.get(TESTConfigIsolatedB.class).value() != 2 && System.nanoTime() < end)
+				Thread.sleep(10);
+			if (ConfigManager.get(TESTConfigIsolatedB.class).value() != 2)
+				throw new IllegalArgumentException("invalid file blocked the reload of another file");
+		}));
+	}
+
+	// larger than the 64KB limit of a CONSTANT_Utf8 entry
+	private static void testLargeString() throws Exception {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; sb.length() < 100_000; i++) {
+			sb.append(i).append("-\u20ac-");
+		}
+		withConfigFile("LARGE_STRING_CONFIG", Collections.emptyList(), p -> {
+			Properties prop = new Properties();
+			prop.setProperty("test.large", sb.toString());
+			try (BufferedWriter bw = Files.newBufferedWriter(p)) {
+				prop.store(bw, null);
+			}
+			TESTConfigLargeString large = ConfigManager.get(TESTConfigLargeString.class);
+			if (!sb.toString().equals(large.getLarge()) || large.getLarge() != large.getLarge()) {
+				throw new IllegalArgumentException("large string not working");
+			}
+		});
+	}
+
+	private static void testTenants() throws Exception {
+		withConfigDir("TENANT_CONFIG", "{tenant}.properties", dir -> {
+			for (String tenant : new String[] {"a", "b", "c", "d"}) {
+				Files.write(dir.resolve(tenant + ".properties"), ("test.tenant.name=" + ("c".equals(tenant) ? "a" : tenant)
+						+ ("b".equals(tenant) ? "\ntest.tenant.ratio=2.5\ntest.tenant.rollout=100\ntest.tenant.db.pool.size=3" : "")).getBytes());
+			}
+			ConfigManager.setMaxTenants(3);
+			TESTConfigTenant a = ConfigManager.get(TESTConfigTenant.class, "a");
+			TESTConfigTenant b = ConfigManager.get(TESTConfigTenant.class, "b");
+			TESTConfigTenant c = ConfigManager.get(TESTConfigTenant.class, "c");
+			if (!"a".equals(a.getName()) || !"b".equals(b.getName()) || a != ConfigManager.get(TESTConfigTenant.class, "a")) {
+				throw new IllegalArgumentException("tenants not working");
+			}
+			if (a != c) {
+				throw new IllegalArgumentException("tenants with the same configuration must share the instance");
+			}
+			// one generated class for all tenants, the values are fields of the instances
+			if (a.getClass() != b.getClass() || a.db().getClass() != b.db().getClass() || a.db() == b.db()) {
+				throw new IllegalArgumentException("tenants must share the generated class");
+			}
+			if (b.getRatio() != 2.5 || a.getRatio() != 0.5 || b.getLimit() != -281474976710655L || b.db().poolSize() != 3 || a.db().poolSize() != 1) {
+				throw new IllegalArgumentException("tenant values wrong: " + b.getRatio() + " " + b.getLimit() + " " + b.db().poolSize());
+			}
+			for (int id = 0; id < 1000; id++) {
+				if (!b.rollout("user" + id) || a.rollout("user" + id) != ConfigManager.rolloutBucket("user" + id) < 30)
+					throw new IllegalArgumentException("tenant rollout flag wrong");
+			}
+			ConfigManager.get(TESTConfigTenant.class, "d");
+			if (ConfigManager.tenants(TESTConfigTenant.class).contains("b") || ConfigManager.tenants(TESTConfigTenant.class).size() != 3) {
+				throw new IllegalArgumentException("least recently used tenant not evicted: " + ConfigManager.tenants(TESTConfigTenant.class));
+			}
+			try {
+				ConfigManager.get(TESTConfigTenant.class, "../a");
+				throw new RuntimeException("failed");
+			} catch (IllegalArgumentException e) {
+				if (!e.getMessage().contains("Invalid tenant id"))
+					throw new RuntimeException("failed");
+			}
+		});
+	}
+
+	// a reload with an invalid value publishes nothing, all interfaces of the file keep the last good instance
+	private static void testValidation() throws Exception {
+		withConfigFile("VALIDATED_CONFIG", Arrays.asList("validated.port=8080", "validated.name=abc", "validated.size=2"), p -> {
+			TESTConfigValidated validated = ConfigManager.get(TESTConfigValidated.class);
+			TESTConfigValidatedSize size = ConfigManager.get(TESTConfigValidatedSize.class);
+			long failures = ConfigManager.getReloadStatus().getFailures();
+			List<String> content = Files.readAllLines(p);
+			Map<String, String> values = new HashMap<>();
+			values.put("validated.size", "3");
+			values.put("validated.port", "70000");
+			try {
+				ConfigManager.update(TESTConfigValidated.class, values);
+				throw new RuntimeException("failed");
+			} catch (IllegalArgumentException e) {
+				if (!e.getMessage().contains("validation failed: validated.port"))
+					throw new RuntimeException("failed", e);
+			}
+			if (validated != ConfigManager.get(TESTConfigValidated.class) || size != ConfigManager.get(TESTConfigValidatedSize.class)
+					|| size.getSize() != 2 || ConfigManager.getReloadStatus().getFailures() != failures + 1
+					|| !content.equals(Files.readAllLines(p))) {
+				throw new IllegalArgumentException("failed reload must keep the previous configuration " + ConfigManager.getReloadStatus());
+			}
+			try {
+				ConfigManager.update(TESTConfigValidated.class, "validated.name", "");
+				throw new RuntimeException("failed");
+			} catch (IllegalArgumentException e) {
+				if (!e.getMessage().contains("is empty"))
+					throw new RuntimeException("failed", e);
+			}
+			ConfigManager.update(TESTConfigValidated.class, "validated.port", "9090");
+			if (ConfigManager.get(TESTConfigValidated.class).getPort() != 9090 || size != ConfigManager.get(TESTConfigValidatedSize.class)) {
+				throw new IllegalArgumentException("valid update not published");
+			}
+			// effective configuration with the source of each value, also as JMX operation
+			ConfigManager.registerMBean();
+			String dump = (String) ManagementFactory.getPlatformMBeanServer().invoke(new ObjectName("de.codecoverage.config:type=ConfigManager"),
+					"dumpConfiguration", null, null);
+			if (!dump.contains("validated.port=9090 (UPDATE)") || !dump.contains("validated.name=abc (FILE)")
+					|| !dump.contains(TESTConfigValidated.class.getName() + " class=" + TESTConfigValidated.class.getName() + "$CG")) {
+				throw new IllegalArgumentException("effective configuration wrong: " + dump);
+			}
+		});
+	}
+
+	// the generated accessors count their calls
+	private static void testAccessCounting() throws Exception {
+		ConfigManager.setAccessCounting(true);
+		try {
+			withConfigFile("COUNTED_CONFIG", Arrays.asList("test.db.poolSize=4"), p -> {
+				TESTConfigCounted counted = ConfigManager.get(TESTConfigCounted.class);
+				for (int i = 0; i < 3; i++) {
+					if (counted.getDouble() != 1.5 || !"counted".equals(counted.getName()))
+						throw new IllegalArgumentException("access counting changed the values");
+				}
+				if (counted.db().poolSize() != 4 || !"jdbc:test?pool=4".equals(counted.db().url()))
+					throw new IllegalArgumentException("access counting changed the values");
+				Map<String, Long> counts = ConfigManager.getAccessCounts(TESTConfigCounted.class);
+				if (counts.size() != 4 || counts.get("counted.double") != 3 || counts.get("counted.name") != 3 || counts.get("test.db.poolSize") != 1) {
+					throw new IllegalArgumentException("access counting not working: " + counts);
+				}
+				if (!ConfigManager.dumpAccessCounts().contains("counted.double reads=3")) {
+					throw new IllegalArgumentException("access counting dump not working: " + ConfigManager.dumpAccessCounts());
+				}
+				String dump = ConfigManager.dumpConfiguration();
+				if (!dump.contains("counted.double=1.5 (DEFAULT)") || !dump.contains("test.db.poolSize=4 (FILE)")) {
+					throw new IllegalArgumentException("effective configuration wrong: " + dump);
+				}
+				if (!ConfigManager.getAccessCounts(TESTConfigValidated.class).isEmpty()) {
+					throw new IllegalArgumentException("classes generated without access counting have no counters");
+				}
+			});
+		} finally {
+			ConfigManager.setAccessCounting(false);
+		}
+	}
+
+	// the generated flags match rolloutBucket(), the share of enabled ids is about the percent
+	private static void testRollout() throws Exception {
+		withConfigFile("ROLLOUT_CONFIG", Arrays.asList("rollout.newSearch=100"), p -> {
+			TESTConfigRollout rollout = ConfigManager.get(TESTConfigRollout.class);
+			int enabled = 0;
+			for (long id = -5000; id < 5000; id++) {
+				if (rollout.newCheckout(id) != ConfigManager.rolloutBucket(id) < 5 || !rollout.newSearch("u" + id))
+					throw new IllegalArgumentException("rollout flag wrong for " + id);
+				enabled += rollout.newCheckout(id) ? 1 : 0;
+			}
+			if (enabled < 400 || enabled > 600)
+				throw new IllegalArgumentException("rollout not about 5%: " + enabled + " of 10000");
+			Map<String, String> values = new HashMap<>();
+			values.put("rollout.newCheckout", "0");
+			values.put("rollout.newSearch", "50");
+			ConfigManager.update(TESTConfigRollout.class, values);
+			rollout = ConfigManager.get(TESTConfigRollout.class);
+			for (long id = 0; id < 1000; id++) {
+				if (rollout.newCheckout(id) || rollout.newSearch("u" + id) != ConfigManager.rolloutBucket("u" + id) < 50)
+					throw new IllegalArgumentException("rollout flag wrong after update for " + id);
+			}
+			try {
+				ConfigManager.update(TESTConfigRollout.class, "rollout.newSearch", "101");
+				throw new RuntimeException("failed");
+			} catch (IllegalArgumentException e) {
+				if (!e.getMessage().contains("not in [0, 100]"))
+					throw new RuntimeException("failed", e);
+			}
+		});
+	}
+
+	// a rejected listener is logged and dropped, the next change is delivered again
+	private static void testListenerRejected() throws Exception {
+		Logger log = Logger.getLogger(ConfigManager.class.getName());
+		AtomicInteger rejected = new AtomicInteger();
+		Handler counter = new Handler() {
+			@Override
+			public void publish(LogRecord r) {
+				if (r.getLevel() == Level.SEVERE && r.getThrown() instanceof RejectedExecutionException)
+					rejected.incrementAndGet();
+			}
+
+			@Override
+			public void flush() {
+			}
+
+			@Override
+			public void close() {
+			}
+		};
+		boolean useParentHandlers = log.getUseParentHandlers();
+		log.setUseParentHandlers(false); // the expected rejection isn't printed
+		log.addHandler(counter);
+		AtomicBoolean reject = new AtomicBoolean(true);
+		ConfigManager.Options options = new ConfigManager.Options().name("listener").listenerExecutor(r -> {
+			if (reject.get())
+				throw new RejectedExecutionException("queue full");
+			new Thread(r).start();
+		});
+		try {
+			withConfigFile("LISTENER_CONFIG", Collections.emptyList(), p -> {
+				try (ConfigManager.Instance config = ConfigManager.create(options)) {
+					BlockingQueue<Integer> changes = new LinkedBlockingQueue<>();
+					config.get(TESTConfigListener.class);
+					config.addListener(TESTConfigListener.class, (o, n, keys) -> changes.add(n.value()));
+					config.update(TESTConfigListener.class, "listener.value", "1");
+					if (rejected.get() != 1 || changes.poll(100, TimeUnit.MILLISECONDS) != null)
+						throw new IllegalArgumentException("rejected listener not logged: " + rejected.get());
+					reject.set(false);
+					for (int v = 2; v <= 3; v++) {
+						config.update(TESTConfigListener.class, "listener.value", Integer.toString(v));
+						Integer value = changes.poll(5, TimeUnit.SECONDS);
+						if (value == null || value != v)
+							throw new IllegalArgumentException("listener not called after a rejection: " + value);
+					}
+				}
+			});
+		} finally {
+			log.removeHandler(counter);
+			log.setUseParentHandlers(useParentHandlers);
+		}
+	}
+
+	// rollback() publishes an instance of the history again, pinned until the file changes
+	private static void testRollback() throws Exception {
+		withConfigFile("HISTORY_CONFIG", Collections.emptyList(), p -> {
+			BlockingQueue<Set<String>> changes = new LinkedBlockingQueue<>();
+			ConfigManager.addListener(TESTConfigHistory.class, (o, n, keys) -> changes.add(keys));
+			TESTConfigHistory first = ConfigManager.get(TESTConfigHistory.class);
+			ConfigManager.update(TESTConfigHistory.class, "history.limit", "20");
+			TESTConfigHistory good = ConfigManager.get(TESTConfigHistory.class);
+			ConfigManager.update(TESTConfigHistory.class, "history.limit", "-1");
+			List<ConfigManager.Generation> history = ConfigManager.history(TESTConfigHistory.class);
+			if (history.size() != 3 || !history.get(0).isActive() || history.get(1).getGeneration() >= history.get(0).getGeneration())
+				throw new IllegalArgumentException("history wrong: " + history);
+			long goodGeneration = history.get(1).getGeneration();
+			changes.clear();
+
+			ConfigManager.rollback(TESTConfigHistory.class, goodGeneration, true);
+			if (ConfigManager.get(TESTConfigHistory.class) != good || !Collections.singleton("history.limit").equals(changes.poll(5, TimeUnit.SECONDS)))
+				throw new IllegalArgumentException("rollback not published");
+			// pinned: a reload of the unchanged values keeps the rollback, a changed file replaces it
+			ConfigManager.update(TESTConfigHistory.class, "history.other", "x");
+			if (ConfigManager.get(TESTConfigHistory.class) != good || !ConfigManager.dumpHistory().contains("TESTConfigHistory (pinned)"))
+				throw new IllegalArgumentException("pinned rollback replaced");
+			ConfigManager.update(TESTConfigHistory.class, "history.limit", "30");
+			if (ConfigManager.get(TESTConfigHistory.class).limit() != 30 || ConfigManager.dumpHistory().contains("TESTConfigHistory (pinned)"))
+				throw new IllegalArgumentException("changed file must replace the pinned rollback");
+
+			// not pinned: the next reload publishes the file again
+			ConfigManager.rollback(p, goodGeneration - 1, false);
+			if (ConfigManager.get(TESTConfigHistory.class) != first)
+				throw new IllegalArgumentException("rollback of the file failed");
+			ConfigManager.update(TESTConfigHistory.class, "history.other", "y");
+			if (ConfigManager.get(TESTConfigHistory.class).limit() != 30)
+				throw new IllegalArgumentException("unpinned rollback must be replaced by a reload");
+			try {
+				ConfigManager.rollback(TESTConfigHistory.class, 0);
+				throw new RuntimeException("failed");
+			} catch (IllegalArgumentException e) {
+				if (!e.getMessage().contains("not in the history"))
+					throw new RuntimeException("failed", e);
+			}
+		});
+	}
+
+	// the next default manager after shutdown() keeps the settings of the static setters
+	private static void testShutdownSettings() throws Exception {
+		try {
+			withConfigFile("HISTORY_CONFIG", Collections.emptyList(), p -> {
+				ConfigManager.setHistorySize(2);
+				ConfigManager.shutdown();
+				ConfigManager.get(TESTConfigHistory.class);
+				for (int i = 1; i <= 4; i++)
+					ConfigManager.update(TESTConfigHistory.class, "history.limit", Integer.toString(i * 10));
+				if (ConfigManager.history(TESTConfigHistory.class).size() != 2)
+					throw new IllegalArgumentException("history size lost by shutdown(): " + ConfigManager.history(TESTConfigHistory.class).size());
+			});
+		} finally {
+			ConfigManager.setHistorySize(8);
+		}
+	}
+
+	// a reload defines the changed interfaces of one file with one class loader
+	private static void testSharedLoader() throws Exception {
+		withConfigFile("SHARED_CONFIG", Collections.emptyList(), p -> {
+			System.setProperty("SHARED_ALIAS_CONFIG", p.toString());
+			TESTConfigShared1 one = ConfigManager.get(TESTConfigShared1.class);
+			TESTConfigShared2 two = ConfigManager.get(TESTConfigShared2.class);
+			if (one.getClass().getClassLoader() != two.getClass().getClassLoader())
+				throw new IllegalArgumentException("first get() of one file not defined by one loader");
+			Map<String, String> values = new HashMap<>();
+			values.put("shared.one", "11");
+			values.put("shared.two", "22");
+			values.put("shared.three", "44");
+			values.put("shared.group.pool.size", "33");
+			ConfigManager.update(TESTConfigShared1.class, values);
+			one = ConfigManager.get(TESTConfigShared1.class);
+			two = ConfigManager.get(TESTConfigShared2.class);
+			if (one.one() != 11 || two.two() != 22 || one.db().poolSize() != 33)
+				throw new IllegalArgumentException("shared file not reloaded: " + one.one() + " " + two.two());
+			ClassLoader loader = one.getClass().getClassLoader();
+			if (two.getClass().getClassLoader() != loader || one.db().getClass().getClassLoader() != loader)
+				throw new IllegalArgumentException("interfaces of one file not defined by one loader");
+			// the loader belongs to the file, not to the placeholder
+			TESTConfigShared3 three = ConfigManager.get(TESTConfigShared3.class);
+			if (three.three() != 44 || three.getClass().getClassLoader() != loader)
+				throw new IllegalArgumentException("file bound by another placeholder not defined by its loader");
+			ConfigManager.update(TESTConfigShared1.class, "shared.two", "23");
+			if (ConfigManager.get(TESTConfigShared1.class) != one || ConfigManager.get(TESTConfigShared2.class).getClass().getClassLoader() == loader)
+				throw new IllegalArgumentException("only the changed interface is regenerated");
+
+			// the same file bound from another class loader (e.g. a second deployment) gets its own shared loader
+			try (ChildFirstLoader other = new ChildFirstLoader(TESTConfigShared2.class.getName())) {
+				Class<?> foreign = other.loadClass(TESTConfigShared2.class.getName());
+				if (foreign == TESTConfigShared2.class)
+					throw new IllegalArgumentException("interface not loaded by the other loader");
+				ConfigManager.get(foreign);
+				values.put("shared.one", "12");
+				values.put("shared.two", "24");
+				ConfigManager.update(TESTConfigShared1.class, values);
+				Object two2 = ConfigManager.get(foreign);
+				if (!foreign.isInstance(two2) || (Integer) foreign.getMethod("two").invoke(two2) != 24 || ConfigManager.get(TESTConfigShared2.class).two() != 24
+						|| ConfigManager.get(TESTConfigShared1.class).one() != 12 || two2.getClass().getClassLoader().getParent() != other)
+					throw new IllegalArgumentException("interfaces of two class loaders on one file not reloaded");
+			}
+		});
+	}
+
+	// loads the given class itself, everything else from the class loader of the TestDriver
+	private static final class ChildFirstLoader extends URLClassLoader {
+		private final String className;
+
+		private ChildFirstLoader(String className) {
+			super(new URL[] { TestDriver.class.getProtectionDomain().getCodeSource().getLocation() }, TestDriver.class.getClassLoader());
+			this.className = className;
+		}
+
+		@Override
+		protected Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
+			if (!name.equals(className))
+				return super.loadClass(name, resolve);
+			synchronized (getClassLoadingLock(name)) {
+				Class<?> c = findLoadedClass(name);
+				if (c == null)
+					c = findClass(name);
+				if (resolve)
+					resolveClass(c);
+				return c;
+			}
+		}
+	}
+
+	// .json and .yaml files are flattened to dotted keys, only the keys of the interface are extracted,
+	// unless a ${...} refers to another key of the file
+	private static void testFormats() throws Exception {
+		withConfigDir("FORMAT_CONFIG", "{tenant}", dir -> {
+			Path json = dir.resolve("app.json");
+			Path yaml = dir.resolve("app.yaml");
+			Path broken = dir.resolve("broken.yaml");
+			Files.write(json, Arrays.asList("{",
+					"  \"server\": {\"port\": 8443, \"name\": \"caf\\u00e9 \\\"main\\\"\", \"hosts\": [\"a\", \"b\"], \"secure\": true,",
+					"             \"unused\": {\"deep\": [1, 2.5e3, null, {\"x\": false}]}},",
+					"  \"motd\": \"line1\\nline2\",",
+					"  \"db\": {\"url\": \"jdbc:h2:mem:${server.port}/${db.schema}\", \"schema\": \"app\", \"pool\": {\"size\": 16}}",
+					"}"));
+			Files.write(yaml, Arrays.asList("# app config",
+					"server:",
+					"  port: 8443   # https",
+					"  name: \"caf\\u00e9 \\\"main\\\"\"",
+					"  hosts:",
+					"  - a",
+					"  - 'b'",
+					"  secure: true",
+					"  unused:",
+					"    - x: 1",
+					"      y: \"2\"",
+					"motd: |-",
+					"  line1",
+					"  line2",
+					"db:",
+					"  url: jdbc:h2:mem:${server.port}/${db.schema}",
+					"  schema: app   # not a key of the interface",
+					"  pool:",
+					"    size: 16"));
+			Files.write(broken, Arrays.asList("server:", "\tport: 1"));
+			for (String file : new String[] { "app.json", "app.yaml" }) {
+				TESTConfigFormat f = ConfigManager.get(TESTConfigFormat.class, file);
+				if (f.port() != 8443 || !"caf\u00e9 \"main\"".equals(f.name()) || !"b".equals(f.secondHost()) || !f.secure()
+						|| !"line1\nline2".equals(f.motd()) || !"jdbc:h2:mem:8443/app".equals(f.db().url()) || f.db().poolSize() != 16)
+					throw new IllegalArgumentException(file + " parsed wrong: " + f.port() + " " + f.name() + " " + f.motd());
+			}
+			try {
+				ConfigManager.get(TESTConfigFormat.class, "broken.yaml");
+				throw new RuntimeException("failed");
+			} catch (IllegalArgumentException e) {
+				if (!e.getMessage().contains("tabs are not allowed for indentation at line 2"))
+					throw new RuntimeException("failed", e);
+			}
+			if (ConfigManager.parseFile(yaml, null).getProperty("server.unused.0.x") == null
+					|| ConfigManager.parseFile(json, null).getProperty("server.unused.deep.3.x") == null)
+				throw new IllegalArgumentException("all keys not flattened");
+			if (Boolean.parseBoolean(System.getenv("TESTDRIVER_MEASURE")))
+				measureFormats(dir);
+		});
+	}
+
+	// parse time of a large file (20000 keys) per format, all keys and only the 10 keys of an interface
+	private static void measureFormats(Path dir) throws IOException {
+		List<String> properties = new ArrayList<>();
+		StringBuilder json = new StringBuilder("{\n");
+		List<String> yaml = new ArrayList<>();
+		Set<String> wanted = new HashSet<>();
+		for (int i = 0; i < 5000; i++) {
+			json.append(i == 0 ? "" : ",\n").append("  \"service").append(i).append("\": {");
+			yaml.add("service" + i + ":");
+			for (String key : new String[] { "host", "port", "timeout", "name" }) {
+				String value = key.equals("host") ? "host" + i + ".example.com" : key.equals("name") ? "Service number " + i : Integer.toString(i);
+				properties.add("service" + i + "." + key + "=" + value);
+				json.append(key.equals("host") ? "" : ", ").append('"').append(key).append("\": \"").append(value).append('"');
+				yaml.add("  " + key + ": " + value);
+				if (i % 1000 == 0 && wanted.size() < 10)
+					wanted.add("service" + i + "." + key);
+			}
+			json.append('}');
+		}
+		json.append("\n}\n");
+		Path[] files = { dir.resolve("bench.properties"), dir.resolve("bench.json"), dir.resolve("bench.yaml") };
+		Files.write(files[0], properties);
+		Files.write(files[1], json.toString().getBytes(StandardCharsets.UTF_8));
+		Files.write(files[2], yaml);
+		try {
+			for (Path file : files) {
+				if (ConfigManager.parseFile(file, null).size() != 20000 || ConfigManager.parseFile(file, wanted).size() < 10)
+					throw new IllegalArgumentException("benchmark file parsed wrong: " + file);
+				System.out.println(String.format(Locale.ROOT, "parse %-16s all keys: %7.0f us  %d keys: %7.0f us", file.getFileName(),
+						medianMicros(file, null), wanted.size(), medianMicros(file, wanted)));
+			}
+		} finally {
+			for (Path file : files)
+				Files.delete(file);
+		}
+	}
+
+	private static double medianMicros(Path file, Set<String> keys) throws IOException {
+		long[] times = new long[51];
+		for (int i = -50; i < times.length; i++) { // the first 50 warm up
+			long t1 = System.nanoTime();
+			ConfigManager.parseFile(file, keys);
+			long t2 = System.nanoTime();
+			if (i >= 0)
+				times[i] = t2 - t1;
+		}
+		Arrays.sort(times);
+		return times[times.length / 2] / 1000.0;
+	}
+
+	// deferred loading: the first get() has the defaults, the file values follow in the background
+	private static void testDeferred() throws Exception {
+		try {
+			withConfigFile("DEFERRED_CONFIG", Arrays.asList("deferred.mode=file", "deferred.threads=8"), p -> withConfigFile("BLOCKING_CONFIG", Collections.emptyList(), blocking -> {
+				BlockingQueue<Set<String>> changes = new LinkedBlockingQueue<>();
+				ConfigManager.addListener(TESTConfigDeferred.class, (o, n, keys) -> changes.add(keys));
+				// a slow reload holds the reloadLock, the deferred get() must not wait for it
+				ConfigManager.get(TESTConfigBlocking.class);
+				CountDownLatch entered = new CountDownLatch(1);
+				CountDownLatch release = new CountDownLatch(1);
+				ConfigManager.registerDecoder("SLOW", v -> {
+					entered.countDown();
+					try {
+						release.await(5, TimeUnit.SECONDS);
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					}
+					return v;
+				});
+				Thread slow = new Thread(() -> ConfigManager.update(TESTConfigBlocking.class, "blocking.value", "SLOW(x)"));
+				slow.start();
+				entered.await();
+				ConfigManager.setDeferredLoading(true);
+				long start = System.nanoTime();
+				TESTConfigDeferred first = ConfigManager.get(TESTConfigDeferred.class);
+				long waited = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+				release.countDown();
+				slow.join();
+				if (waited > 2000)
+					throw new IllegalArgumentException("deferred get() waited for the reloadLock: " + waited + "ms");
+				if (!"default".equals(first.mode()) || first.threads() != 1)
+					throw new IllegalArgumentException("deferred get() must return the defaults: " + first.mode());
+				if (!ConfigManager.awaitReady(5, TimeUnit.SECONDS) || !ConfigManager.isReady())
+					throw new IllegalArgumentException("deferred load not ready");
+				TESTConfigDeferred loaded = ConfigManager.get(TESTConfigDeferred.class);
+				if (!"file".equals(loaded.mode()) || loaded.threads() != 8)
+					throw new IllegalArgumentException("file values not swapped in: " + loaded.mode());
+				Set<String> keys = changes.poll(5, TimeUnit.SECONDS);
+				if (keys == null || !keys.contains("deferred.mode") || !keys.contains("deferred.threads"))
+					throw new IllegalArgumentException("listener not notified: " + keys);
+				if (!ConfigManager.dumpConfiguration().contains("deferred.mode=file (FILE)"))
+					throw new IllegalArgumentException("deferred source wrong");
+				if (ConfigManager.history(TESTConfigDeferred.class).size() != 2)
+					throw new IllegalArgumentException("defaults not in the history: " + ConfigManager.history(TESTConfigDeferred.class));
+			}));
+		} finally {
+			ConfigManager.setDeferredLoading(false);
+		}
+	}
+
+	// ENC(...) values are decrypted once with a keystore key, the plaintext is in no dump and no error
+	private static void testSecrets() throws Exception {
+		Path ks = Files.createTempFile("secret", ".p12");
+		try {
+			char[] password = "changeit".toCharArray();
+			KeyGenerator generator = KeyGenerator.getInstance("AES");
+			generator.init(128);
+			KeyStore keyStore = KeyStore.getInstance("PKCS12");
+			keyStore.load(null, password);
+			keyStore.setEntry("config", new KeyStore.SecretKeyEntry(generator.generateKey()), new KeyStore.PasswordProtection(password));
+			try (OutputStream out = Files.newOutputStream(ks)) {
+				keyStore.store(out, password);
+			}
+			ConfigManager.KeyStoreDecoder decoder = new ConfigManager.KeyStoreDecoder(ks, password, "config");
+			ConfigManager.registerDecoder("ENC", decoder);
+			List<String> lines = Arrays.asList("secret.password=ENC(" + decoder.encrypt("s3cr3t-\u20ac") + ")",
+					"secret.pin=ENC(" + decoder.encrypt("4711") + ")");
+			withConfigFile("SECRET_CONFIG", lines, p -> {
+				// no decoder is built in, BASE64(...) stays as it is until it is registered
+				try (ConfigManager.Instance instance = ConfigManager.create(new ConfigManager.Options().name("secrets"))) {
+					instance.registerDecoder("ENC", decoder);
+					if (!"BASE64(dG9rZW4=)".equals(instance.get(TESTConfigSecret.class).token()))
+						throw new IllegalArgumentException("BASE64 decoded without registration");
+					// the secrets are hashed with a key per manager, the same file has another fingerprint
+					try (ConfigManager.Instance other = ConfigManager.create(new ConfigManager.Options().name("secrets2"))) {
+						other.registerDecoder("ENC", decoder);
+						other.get(TESTConfigSecret.class);
+						if (instance.history(TESTConfigSecret.class).get(0).getFingerprint().equals(other.history(TESTConfigSecret.class).get(0).getFingerprint()))
+							throw new IllegalArgumentException("unkeyed hash of the secrets");
+					}
+				}
+				ConfigManager.registerDecoder("BASE64", ConfigManager.ValueDecoder.BASE64);
+				TESTConfigSecret secret = ConfigManager.get(TESTConfigSecret.class);
+				if (!"s3cr3t-\u20ac".equals(secret.password()) || secret.pin() != 4711 || !"token".equals(secret.token()))
+					throw new IllegalArgumentException("secrets not decoded: " + secret.pin());
+				String dump = ConfigManager.dumpConfiguration();
+				if (dump.contains("s3cr3t") || dump.contains("=4711") || !dump.contains("secret.password=**** (FILE)") || !dump.contains("secret.token=**** (DEFAULT)"))
+					throw new IllegalArgumentException("secret in dump:\n" + dump);
+
+				// a new ciphertext (new iv) of the same plaintext is no change
+				ConfigManager.update(TESTConfigSecret.class, "secret.password", "ENC(" + decoder.encrypt("s3cr3t-\u20ac") + ")");
+				if (ConfigManager.get(TESTConfigSecret.class) != secret)
+					throw new IllegalArgumentException("same plaintext generated a new instance");
+				ConfigManager.update(TESTConfigSecret.class, "secret.password", "ENC(" + decoder.encrypt("other") + ")");
+				if (!"other".equals(ConfigManager.get(TESTConfigSecret.class).password()))
+					throw new IllegalArgumentException("changed secret not reloaded");
+
+				String[][] failures = { { "secret.password", "ENC(AAAAAAAAAAAAAAAAAAAAAAAAAAAA)", "decoding failed: secret.password" },
+						{ "secret.pin", "ENC(" + decoder.encrypt("123") + ")", "secret.pin=**** not in" },
+						{ "secret.pin", "ENC(" + decoder.encrypt("12x4") + ")", "secret.pin=**** returnType" } };
+				for (String[] f : failures) {
+					try {
+						ConfigManager.update(TESTConfigSecret.class, f[0], f[1]);
+						throw new RuntimeException("failed");
+					} catch (IllegalArgumentException e) {
+						for (Throwable t = e; t != null; t = t.getCause()) {
+							if (String.valueOf(t.getMessage()).contains("123") || String.valueOf(t.getMessage()).contains("12x4"))
+								throw new RuntimeException("plaintext in error", e);
+						}
+						if (!e.getMessage().contains(f[2]))
+							throw new RuntimeException("failed", e);
+					}
+				}
+				if (!"other".equals(ConfigManager.get(TESTConfigSecret.class).password()))
+					throw new IllegalArgumentException("failed update changed the secret");
+			});
+		} finally {
+			Files.delete(ks);
+		}
+	}
+
+	// generated at compile time by the ConfigProcessor, as long as the file doesn't override a value
+	private static void testPrebuilt() {
+		TESTConfigPrebuilt prebuilt = ConfigManager.get(TESTConfigPrebuilt.class);
+		if (!prebuilt.getClass().getName().endsWith("_Defaults")) {
+			throw new IllegalArgumentException("pre-built defaults not used: " + prebuilt.getClass().getName());
+		}
+		if (!"pre\"built\" \u20ac\\".equals(prebuilt.getString()) || prebuilt.getLong() != -281474976710655L || prebuilt.getDouble() != 1e10
+				|| !prebuilt.getBoolean() || prebuilt.db().poolSize() != 16 || prebuilt.db() != prebuilt.db()) {
+			throw new IllegalArgumentException("pre-built defaults wrong");
+		}
+		for (int id = 0; id < 1000; id++) {
+			if (prebuilt.rollout("user" + id) != ConfigManager.rolloutBucket("user" + id) < 30)
+				throw new IllegalArgumentException("pre-built rollout flag wrong");
+		}
+		TESTConfigPrebuiltOverride override = ConfigManager.get(TESTConfigPrebuiltOverride.class);
+		if (override.getClass().getName().endsWith("_Defaults") || override.getBoolean()) {
+			throw new IllegalArgumentException("file value must override the pre-built defaults");
+		}
+	}
+
 	public static void main(String... args) throws Exception {
 		int count = args.length == 1 ? Integer.parseInt(args[0]) : 1;
+		testLargeString();
+		testTenants();
+		testPrebuilt();
+		testValidation();
+		testAccessCounting();
+		testRollout();
+		testSecrets();
+		testDeferred();
+		testFormats();
+		testSharedLoader();
+		testAtomicRename();
+		testReloadIsolation();
+		testRollback();
+		testListenerRejected();
+		BlockingQueue<Object[]> changes = new LinkedBlockingQueue<>();
+		ConfigManager.addListener(TESTConfig2.class, (o, n, keys) -> changes.add(new Object[] {o, n, keys}));
+		Object lastNotified = null;
 		for (int n = 0 ; n < count ; n++) {
 			System.out.println(n);
 			
@@ -129,6 +1069,33 @@ public class TestDriver {
 				}
 			}
 			
+			try {
+				ConfigManager.get(TESTConfigFailCycle.class);
+				throw new RuntimeException("failed");
+			} catch(IllegalArgumentException e) {
+				if (e.getMessage().contains("Cyclic reference"))
+				{ /* ignore */ } else {
+					throw new RuntimeException("failed");
+				}
+			}
+
+			TESTConfigInterpolation interpolation = ConfigManager.get(TESTConfigInterpolation.class);
+			if (!"http://localhost:8080/api?flag=false".equals(interpolation.getUrl())
+					|| !String.valueOf(System.getenv("PATH")).equals(interpolation.getEnv())) {
+				throw new IllegalArgumentException("interpolation not working: " + interpolation.getUrl());
+			}
+			if (!"http://localhost:8080/api?name=duckhawk".equals(interpolation.getNameUrl())) {
+				throw new IllegalArgumentException("interpolation of a group key not working: " + interpolation.getNameUrl());
+			}
+			if (!"echo ${HOME} duckhawk".equals(interpolation.getEscaped())) {
+				throw new IllegalArgumentException("escaped reference not working: " + interpolation.getEscaped());
+			}
+
+			TESTConfigNested nested = ConfigManager.get(TESTConfigNested.class);
+			if (nested.db() != nested.db() || nested.db().poolSize() != 8 || !"jdbc:test?pool=8".equals(nested.db().url())) {
+				throw new IllegalArgumentException("nested config not working: " + nested.db().url());
+			}
+
 			System.setProperty("SYSTEM_PROPERTY_CONFIG", PATH_CONFIG2);
 			TESTConfig2 test2 = ConfigManager.get(TESTConfig2.class);
 			TESTConfigProperty systemProperty = ConfigManager.get(TESTConfigProperty.class);
@@ -170,6 +1137,23 @@ public class TestDriver {
 			if (test2 == test2New) {
 				throw new IllegalArgumentException("test2 == test2New. CACHE NOT WORKING!");
 			}
+			// listeners are called in order, the key of the change must be reported
+			boolean changeReported = false;
+			for (Object[] change = changes.poll(1, TimeUnit.SECONDS); change != null; change = changes.poll(100, TimeUnit.MILLISECONDS)) {
+				if (lastNotified != null && change[0] != lastNotified)
+					throw new IllegalArgumentException("listener called out of order");
+				lastNotified = change[1];
+				@SuppressWarnings("unchecked")
+				Set<String> keys = (Set<String>) change[2];
+				changeReported |= keys.contains("TEST2_s");
+			}
+			if (!changeReported) {
+				throw new IllegalArgumentException("listener not called for TEST2_s");
+			}
+			TESTConfigNested nestedNew = ConfigManager.get(TESTConfigNested.class);
+			if (nestedNew == nested || nestedNew.db() == nested.db() || !test2New.getString().equals(nestedNew.getString())) {
+				throw new IllegalArgumentException("nested config not reloaded as one unit");
+			}
 			caller3 = ConfigManager.get(TESTConfig1.class);
 
 			if (caller2 == caller3) {
@@ -191,7 +1175,23 @@ public class TestDriver {
 			if (systemPropertyAgain != systemProperty) {
 				throw new IllegalArgumentException("CACHE NOT WORKING! TESTConfigProperty must no be re-created");
 			}
+
+			// update() regenerates in the calling thread, the watcher ignores the write
+			String updatedValue = "updated " + System.nanoTime() + " : = # !";
+			ConfigManager.update(TESTConfig2.class, "TEST2_s", updatedValue);
+			TESTConfig2 updated = ConfigManager.get(TESTConfig2.class);
+			if (!updatedValue.equals(updated.getString())) {
+				throw new IllegalArgumentException("update() not visible: " + updated.getString());
+			}
+			Thread.sleep(150); // give the watcher a chance
+			if (updated != ConfigManager.get(TESTConfig2.class)) {
+				throw new IllegalArgumentException("update() triggered a reload by the watcher");
+			}
+			if (Files.readAllLines(Paths.get(PATH_CONFIG2)).stream().noneMatch(line -> line.startsWith("#"))) {
+				throw new IllegalArgumentException("update() removed comments");
+			}
 		}
+		testShutdownSettings();
 		ConfigManager.shutdown();
 	}
 }
@@ -0,0 +1,43 @@
+package de.codecoverage.config;
+
+import de.codecoverage.config.ConfigManager.Configurable;
+import de.codecoverage.config.ConfigManager.ConfigurationGroup;
+import de.codecoverage.config.ConfigManager.ConfigurationValue;
+import de.codecoverage.config.ConfigManager.RolloutFlag;
+
+//
+// Config interfaces for the test driver, compiled with the ConfigProcessor (see build.sh)
+//
+public class TestDriverPrebuilt {
+    public interface TESTConfigPrebuiltDb {
+         @ConfigurationValue(key = "poolSize", defaultValue = "16")
+         int poolSize();
+    }
+
+    @Configurable(filePath = "test/duckhawk.properties")
+    public interface TESTConfigPrebuilt {
+         @ConfigurationValue(key = "test.prebuilt.string", defaultValue = "pre\"built\" \u20ac\\")
+         String getString();
+
+         @ConfigurationValue(key = "test.prebuilt.long", defaultValue = "-281474976710655")
+         long getLong();
+
+         @ConfigurationValue(key = "test.prebuilt.double", defaultValue = "1e10")
+         double getDouble();
+
+         @ConfigurationValue(key = "test.prebuilt.boolean", defaultValue = "TRUE")
+         boolean getBoolean();
+
+         @ConfigurationGroup(prefix = "test.prebuilt.db.")
+         TESTConfigPrebuiltDb db();
+
+         @RolloutFlag(key = "test.prebuilt.rollout", defaultPercent = 30)
+         boolean rollout(String userId);
+    }
+
+    @Configurable(filePath = "test/duckhawk.properties")
+    public interface TESTConfigPrebuiltOverride {
+         @ConfigurationValue(key = "TEST1_b", defaultValue = "true")
+         boolean getBoolean();
+    }
+}
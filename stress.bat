@@ -0,0 +1,27 @@
+@echo off
+rem Stress test: reader threads call get() while the file changes, checks for stale reads,
+rem duplicate generations and exceptions (also during shutdown), reports the get() throughput.
+rem stress.bat [readers, default 200] [seconds, default 10] [minimum changes, default 500]
+setlocal
+
+call build.bat
+if %ERRORLEVEL% neq 0 (
+    echo Bob der Baumeister failed to build
+    exit /b 1
+)
+
+set READERS=%1
+if "%READERS%"=="" set READERS=200
+set SECONDS=%2
+if "%SECONDS%"=="" set SECONDS=10
+set CHANGES=%3
+if "%CHANGES%"=="" set CHANGES=500
+
+java -cp bin de.codecoverage.config.StressDriver %READERS% %SECONDS% %CHANGES% > stress.log 2>&1
+if %ERRORLEVEL% neq 0 (
+    type stress.log
+    echo Stress test failed
+    exit /b 1
+)
+type stress.log
+exit /b 0
@@ -0,0 +1,18 @@
+#!/bin/bash
+# Stress test: reader threads call get() while the file changes, checks for stale reads,
+# duplicate generations and exceptions (also during shutdown), reports the get() throughput.
+# ./stress.sh [readers, default 200] [seconds, default 10] [minimum changes, default 500]
+
+if ! ./build.sh; then
+    echo "Bob der Baumeister failed to build"
+    exit 1
+fi
+
+java -cp bin de.codecoverage.config.StressDriver ${1:-200} ${2:-10} ${3:-500} > stress.log 2>&1
+rc=$?
+cat stress.log
+
+if [ $rc -ne 0 ] || grep -q "Exception" stress.log; then
+    echo "Stress test failed"
+    exit 1
+fi